@@ -0,0 +1,88 @@
+/**
+ * how much a script is allowed to do before it's stopped with a runtime error: a number of steps, a deadline and
+ * an approximate number of bytes it may allocate. any of them can be left out (0 when constructing).
+ * a step is a call or one time round a loop, taken before the call or the loop's body runs, so every way of running
+ * for long goes through step(), which only counts. the clock is checked every CHECK_INTERVAL steps, the step limit on
+ * the first step past it. allocations are estimated by what the interpreter creates: frames, instances, strings,
+ * arrays, map tables and snapshots of map keys, and fail as soon as they go over the quota.
+ */
+public class Budget {
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * rough sizes, including object headers, of what gets charged to the allocation quota
+     */
+    static final long FRAME_BYTES = 64;
+    static final long INSTANCE_BYTES = 96;
+    static final long STRING_BYTES = 40;
+    static final long ELEMENT_BYTES = 8;
+    static final long ENTRY_BYTES = 32;
+
+    private final long maxSteps;
+    private final long timeout;
+    private final boolean hasDeadline;
+    private final long maxAllocated;
+
+    private long deadline;
+
+    private long steps = 0;
+    private long nextCheck;
+    private long allocated = 0;
+
+    /**
+     * timeout is in milliseconds and counts from start()
+     */
+    Budget(long maxSteps, long timeout, long maxAllocated) {
+        this.maxSteps = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+        this.hasDeadline = timeout > 0;
+        this.timeout = timeout;
+        this.maxAllocated = maxAllocated > 0 ? maxAllocated : Long.MAX_VALUE;
+        this.nextCheck = Math.min(CHECK_INTERVAL, this.maxSteps);
+        start();
+    }
+
+    static Budget unlimited() {
+        return new Budget(0, 0, 0);
+    }
+
+    /**
+     * starts the clock, when the script is about to run.
+     */
+    public void start() {
+        deadline = System.nanoTime() + timeout * 1_000_000;
+    }
+
+    public void step(Token token) {
+        if (++steps >= nextCheck) check(token);
+    }
+
+    public void allocate(Token token, long bytes) {
+        allocated += bytes;
+        if (allocated > maxAllocated) {
+            throw new RuntimeError(token, "Memory quota exceeded.");
+        }
+    }
+
+    /**
+     * for natives, which report the error at their call
+     */
+    public void allocate(long bytes) {
+        allocated += bytes;
+        if (allocated > maxAllocated) {
+            throw new NativeError("Memory quota exceeded.");
+        }
+    }
+
+    private void check(Token token) {
+        final long remaining = maxSteps - steps;
+        nextCheck = steps + (remaining > 0 ? Math.min(CHECK_INTERVAL, remaining) : 1);
+
+        if (remaining < 0) {
+            throw new RuntimeError(token, "Step limit exceeded.");
+        }
+
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(token, "Time limit exceeded.");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * how deep in Lox calls the interpreter is. calls are still plain recursion in the tree walker and their frames live
+ * on its Java stack, this only counts them, so that going deeper than maxDepth is a Lox "Stack overflow." error
+ * instead of a JVM crash. Lox runs every script on a thread whose stack is sized from maxDepth, so the limit is what
+ * decides how deep a script can go, not -Xss.
+ */
+public class CallDepth {
+    /**
+     * roughly how much Java stack a single Lox call takes in the tree walker, with some room for nested expressions
+     */
+    static final long BYTES_PER_FRAME = 2 * 1024;
+
+    /**
+     * deep enough for any sensible recursion, and a stack of about 20 MiB to hold it
+     */
+    static final int DEFAULT_MAX_DEPTH = 10_000;
+
+    private final int maxDepth;
+    private int depth = 0;
+
+    CallDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * the size of a thread stack that holds maxDepth Lox calls, with a MiB left over for everything around them.
+     */
+    static long stackSize(int maxDepth) {
+        return maxDepth * BYTES_PER_FRAME + 1024 * 1024;
+    }
+
+    public void push(Token callSite) {
+        if (depth == maxDepth) {
+            throw new RuntimeError(callSite, "Stack overflow.");
+        }
+
+        depth++;
+    }
+
+    public void pop() {
+        depth--;
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * a box for a local variable that some closure captures.
+ * the frame slot of a captured variable holds its cell instead of its value, and every closure that captures it
+ * holds the same cell, so assignments on either side are seen by the other.
+ */
+public class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,546 @@
+import java.util.List;
+
+/**
+ * an interim tier, closure compilation: turns the resolved body of a hot function into a tree of Java lambdas that run
+ * it directly. it is not a JIT to JVM bytecode. everything the tree walker looks up on every visit (which visitor
+ * method, the slot or upvalue a variable lives in, the cell of a global, whether a loop is a counted loop, whether a
+ * call is a tail call) is looked up once here and captured by the lambdas, so what's left at run time are field reads
+ * and interface calls.
+ * those interface calls are the limit of this tier: every compiled function goes through the same CompiledExpr.evaluate
+ * and CompiledStmt.execute call sites, which see every kind of node and go megamorphic, so C2 can't inline or
+ * specialize one Lox function the way it could a class generated for it with invokedynamic call sites.
+ * declarations of functions and classes and `super` expressions are rare in hot code, those are handed back to the
+ * interpreter in the same frame.
+ * .....................................................................................................................
+ * this emits closures, not bytecode loaded with Lookup.defineHiddenClass. loading a class is the easy part, writing one
+ * is what JDK 17 has no public API for: java.lang.classfile only arrives (as a preview) in JDK 22, the ASM copy under
+ * jdk.internal isn't exported without --add-exports at both compile and run time, and the build is a bare javac with
+ * no libraries. a class file writer of our own would mean owning the constant pool, branch offsets and the verifier's
+ * stack map frames for every kind of node. once the build has a class file writer, the next tier would emit a hidden
+ * class per hot function, starting with numbers, locals, loops and calls, with this one kept for everything else.
+ */
+public class Compiler implements Expr.Visitor<Compiler.CompiledExpr>, Stmt.Visitor<Compiler.CompiledStmt> {
+    interface CompiledExpr {
+        Object evaluate(Object[] frame, Cell[] upvalues);
+    }
+
+    interface CompiledStmt {
+        void execute(Object[] frame, Cell[] upvalues);
+    }
+
+    private final Interpreter interpreter;
+
+    Compiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public CompiledStmt compile(List<Stmt> statements) {
+        final CompiledStmt[] code = new CompiledStmt[statements.size()];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = compile(statements.get(i));
+        }
+
+        if (code.length == 1) return code[0];
+
+        return (frame, upvalues) -> {
+            for (CompiledStmt statement : code) {
+                statement.execute(frame, upvalues);
+            }
+        };
+    }
+
+    public CompiledStmt compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private CompiledExpr compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+        final CompiledExpr left = compile(expr.left);
+        final CompiledExpr right = compile(expr.right);
+        final Token operator = expr.operator;
+
+        // operands evaluate right to left, like in the interpreter.
+        switch (operator.type) {
+            case PLUS:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x + y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case MINUS:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x - y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case STAR:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x * y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case SLASH:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x / y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case LESS:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x < y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case LESS_EQUAL:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x <= y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case GREATER:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x > y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case GREATER_EQUAL:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double x && b instanceof Double y) return x >= y;
+                    return interpreter.binary(operator, a, b);
+                };
+            case EQUAL_EQUAL:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    return Interpreter.isEqual(a, b);
+                };
+            case BANG_EQUAL:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    return !Interpreter.isEqual(a, b);
+                };
+            default:
+                return (frame, upvalues) -> {
+                    final Object b = right.evaluate(frame, upvalues);
+                    final Object a = left.evaluate(frame, upvalues);
+                    return interpreter.binary(operator, a, b);
+                };
+        }
+    }
+
+    @Override
+    public CompiledExpr visitLogicalExpr(Expr.Logical expr) {
+        final CompiledExpr left = compile(expr.left);
+        final CompiledExpr right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return (frame, upvalues) -> {
+                final Object value = left.evaluate(frame, upvalues);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(frame, upvalues);
+            };
+        }
+
+        return (frame, upvalues) -> {
+            final Object value = left.evaluate(frame, upvalues);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(frame, upvalues);
+        };
+    }
+
+    @Override
+    public CompiledExpr visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public CompiledExpr visitLiteralExpr(Expr.Literal expr) {
+        final Object value = expr.value;
+        return (frame, upvalues) -> value;
+    }
+
+    @Override
+    public CompiledExpr visitUnaryExpr(Expr.Unary expr) {
+        final CompiledExpr right = compile(expr.right);
+        final Token operator = expr.operator;
+
+        if (operator.type == TokenType.BANG) {
+            return (frame, upvalues) -> !Interpreter.isTruthy(right.evaluate(frame, upvalues));
+        }
+
+        return (frame, upvalues) -> {
+            final Object value = right.evaluate(frame, upvalues);
+            if (value instanceof Double x) return -x;
+            return interpreter.unary(operator, value);
+        };
+    }
+
+    @Override
+    public CompiledExpr visitVariableExpr(Expr.Variable expr) {
+        return load(expr, expr.name);
+    }
+
+    @Override
+    public CompiledExpr visitAssignExpr(Expr.Assign expr) {
+        final CompiledExpr value = compile(expr.value);
+        final Token name = expr.name;
+        final Integer location = interpreter.location(expr);
+
+        if (location == null) {
+            final GlobalCell cell = interpreter.globals.cell(name.lexeme);
+            return (frame, upvalues) -> {
+                final Object result = value.evaluate(frame, upvalues);
+                cell.assign(name, result);
+                return result;
+            };
+        }
+
+        if (location < 0) {
+            final int index = -1 - location;
+            return (frame, upvalues) -> {
+                final Object result = value.evaluate(frame, upvalues);
+                upvalues[index].value = result;
+                return result;
+            };
+        }
+
+        final int slot = location;
+        return (frame, upvalues) -> {
+            final Object result = value.evaluate(frame, upvalues);
+            if (frame[slot] instanceof Cell cell) {
+                cell.value = result;
+            } else {
+                frame[slot] = result;
+            }
+            return result;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitGetExpr(Expr.Get expr) {
+        final CompiledExpr object = compile(expr.object);
+        final Token name = expr.name;
+
+        return (frame, upvalues) -> {
+            if (object.evaluate(frame, upvalues) instanceof LoxInstance instance) {
+                return instance.get(name);
+            }
+
+            throw new RuntimeError(name, "Only instances have fields");
+        };
+    }
+
+    @Override
+    public CompiledExpr visitSetExpr(Expr.Set expr) {
+        final CompiledExpr object = compile(expr.object);
+        final CompiledExpr value = compile(expr.value);
+        final Token name = expr.name;
+
+        return (frame, upvalues) -> {
+            if (!(object.evaluate(frame, upvalues) instanceof LoxInstance instance)) {
+                throw new RuntimeError(name, "Only instances have fields");
+            }
+
+            final Object result = value.evaluate(frame, upvalues);
+            instance.set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitCallExpr(Expr.Call expr) {
+        final CompiledExpr callee = compile(expr.callee);
+        final CompiledExpr[] arguments = compileArguments(expr);
+
+        switch (arguments.length) {
+            case 0:
+                return (frame, upvalues) ->
+                        interpreter.call(expr, callee.evaluate(frame, upvalues), 0, null, null, null, null);
+            case 1: {
+                final CompiledExpr first = arguments[0];
+                return (frame, upvalues) -> {
+                    final Object function = callee.evaluate(frame, upvalues);
+                    final Object a = first.evaluate(frame, upvalues);
+                    return interpreter.call(expr, function, 1, a, null, null, null);
+                };
+            }
+            case 2: {
+                final CompiledExpr first = arguments[0];
+                final CompiledExpr second = arguments[1];
+                return (frame, upvalues) -> {
+                    final Object function = callee.evaluate(frame, upvalues);
+                    final Object a = first.evaluate(frame, upvalues);
+                    final Object b = second.evaluate(frame, upvalues);
+                    return interpreter.call(expr, function, 2, a, b, null, null);
+                };
+            }
+            case 3: {
+                final CompiledExpr first = arguments[0];
+                final CompiledExpr second = arguments[1];
+                final CompiledExpr third = arguments[2];
+                return (frame, upvalues) -> {
+                    final Object function = callee.evaluate(frame, upvalues);
+                    final Object a = first.evaluate(frame, upvalues);
+                    final Object b = second.evaluate(frame, upvalues);
+                    final Object c = third.evaluate(frame, upvalues);
+                    return interpreter.call(expr, function, 3, a, b, c, null);
+                };
+            }
+            default:
+                return (frame, upvalues) -> {
+                    final Object function = callee.evaluate(frame, upvalues);
+                    final Object[] values = evaluateAll(arguments, frame, upvalues);
+                    return interpreter.call(expr, function, values.length, null, null, null, values);
+                };
+        }
+    }
+
+    @Override
+    public CompiledExpr visitThisExpr(Expr.This expr) {
+        return load(expr, expr.keyword);
+    }
+
+    @Override
+    public CompiledExpr visitSuperExpr(Expr.Super expr) {
+        return (frame, upvalues) -> interpreter.evaluateIn(expr, frame, upvalues);
+    }
+
+    @Override
+    public CompiledStmt visitPrintStmt(Stmt.Print stmt) {
+        final CompiledExpr expression = compile(stmt.expression);
+        return (frame, upvalues) -> interpreter.print(expression.evaluate(frame, upvalues));
+    }
+
+    @Override
+    public CompiledStmt visitExpressionStmt(Stmt.Expression stmt) {
+        final CompiledExpr expression = compile(stmt.expression);
+        return expression::evaluate;
+    }
+
+    @Override
+    public CompiledStmt visitVarStmt(Stmt.Var stmt) {
+        final CompiledExpr initializer = stmt.initializer != null
+                ? compile(stmt.initializer)
+                : (frame, upvalues) -> null;
+        final Integer slot = interpreter.slot(stmt.name);
+
+        if (slot == null) {
+            final GlobalCell cell = interpreter.globals.cell(stmt.name.lexeme);
+            return (frame, upvalues) -> cell.define(initializer.evaluate(frame, upvalues));
+        }
+
+        if (slot < 0) {
+            final int index = -1 - slot;
+            return (frame, upvalues) -> frame[index] = new Cell(initializer.evaluate(frame, upvalues));
+        }
+
+        final int index = slot;
+        return (frame, upvalues) -> frame[index] = initializer.evaluate(frame, upvalues);
+    }
+
+    @Override
+    public CompiledStmt visitClassStmt(Stmt.Class stmt) {
+        return (frame, upvalues) -> interpreter.executeIn(stmt, frame, upvalues);
+    }
+
+    @Override
+    public CompiledStmt visitFunctionStmt(Stmt.Function stmt) {
+        return (frame, upvalues) -> interpreter.executeIn(stmt, frame, upvalues);
+    }
+
+    @Override
+    public CompiledStmt visitBlockStmt(Stmt.Block stmt) {
+        return compile(stmt.statements);
+    }
+
+    @Override
+    public CompiledStmt visitIfStmt(Stmt.If stmt) {
+        final CompiledExpr condition = compile(stmt.condition);
+        final CompiledStmt thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return (frame, upvalues) -> {
+                if (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                    thenBranch.execute(frame, upvalues);
+                }
+            };
+        }
+
+        final CompiledStmt elseBranch = compile(stmt.elseBranch);
+        return (frame, upvalues) -> {
+            if (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                thenBranch.execute(frame, upvalues);
+            } else {
+                elseBranch.execute(frame, upvalues);
+            }
+        };
+    }
+
+    @Override
+    public CompiledStmt visitWhileStmt(Stmt.While stmt) {
+        final CompiledExpr condition = compile(stmt.condition);
+        final CompiledStmt body = compile(stmt.body);
+        final Budget budget = interpreter.budget;
+        final Token keyword = stmt.keyword;
+
+        return (frame, upvalues) -> {
+            while (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                budget.step(keyword);
+                body.execute(frame, upvalues);
+            }
+        };
+    }
+
+    @Override
+    public CompiledStmt visitForStmt(Stmt.For stmt) {
+        final CompiledStmt loop = compileLoop(stmt);
+        if (stmt.initializer == null) return loop;
+
+        final CompiledStmt initializer = compile(stmt.initializer);
+        return (frame, upvalues) -> {
+            initializer.execute(frame, upvalues);
+            loop.execute(frame, upvalues);
+        };
+    }
+
+    /**
+     * a for loop without its initializer, so it can also take over a loop the interpreter is in the middle of.
+     * everything it needs is in the frame, including the counter of a counted loop.
+     */
+    public CompiledStmt compileLoop(Stmt.For stmt) {
+        final CountedLoop loop = interpreter.countedLoop(stmt);
+        if (loop != null) return countedLoop(stmt, loop);
+
+        final CompiledExpr condition = stmt.condition != null
+                ? compile(stmt.condition)
+                : (frame, upvalues) -> true;
+        final CompiledExpr increment = stmt.increment != null
+                ? compile(stmt.increment)
+                : (frame, upvalues) -> null;
+        final CompiledStmt body = compile(stmt.body);
+        final Budget budget = interpreter.budget;
+        final Token keyword = stmt.keyword;
+
+        return (frame, upvalues) -> {
+            while (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                budget.step(keyword);
+                body.execute(frame, upvalues);
+                increment.evaluate(frame, upvalues);
+            }
+        };
+    }
+
+    /**
+     * see Interpreter.executeCountedLoop
+     */
+    private CompiledStmt countedLoop(Stmt.For stmt, CountedLoop loop) {
+        final CompiledExpr limit = compile(loop.condition.right);
+        final CompiledStmt body = compile(stmt.body);
+        final Token operator = loop.condition.operator;
+        final TokenType comparison = operator.type;
+        final int slot = loop.slot;
+        final double step = loop.step;
+        final boolean bodyReadsCounter = loop.bodyReadsCounter;
+        final Budget budget = interpreter.budget;
+        final Token keyword = stmt.keyword;
+
+        return (frame, upvalues) -> {
+            double counter = (double)frame[slot];
+
+            while (true) {
+                if (!(limit.evaluate(frame, upvalues) instanceof Double bound)) {
+                    throw new RuntimeError(operator, "Operands must be numbers");
+                }
+
+                final boolean more = switch (comparison) {
+                    case LESS -> counter < bound;
+                    case LESS_EQUAL -> counter <= bound;
+                    case GREATER -> counter > bound;
+                    default -> counter >= bound;
+                };
+                if (!more) break;
+
+                budget.step(keyword);
+                if (bodyReadsCounter) {
+                    frame[slot] = counter;
+                }
+
+                body.execute(frame, upvalues);
+                counter += step;
+            }
+        };
+    }
+
+    @Override
+    public CompiledStmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return (frame, upvalues) -> { throw new Return(null); };
+        }
+
+        if (interpreter.isTailCall(stmt.value)) {
+            final Expr.Call call = (Expr.Call)stmt.value;
+            final CompiledExpr callee = compile(call.callee);
+            final CompiledExpr[] arguments = compileArguments(call);
+
+            return (frame, upvalues) -> {
+                final Object function = callee.evaluate(frame, upvalues);
+                interpreter.tailCall(call, function, evaluateAll(arguments, frame, upvalues));
+            };
+        }
+
+        final CompiledExpr value = compile(stmt.value);
+        return (frame, upvalues) -> { throw new Return(value.evaluate(frame, upvalues)); };
+    }
+
+    private CompiledExpr load(Expr expr, Token name) {
+        final Integer location = interpreter.location(expr);
+
+        if (location == null) {
+            final GlobalCell cell = interpreter.globals.cell(name.lexeme);
+            return (frame, upvalues) -> cell.get(name);
+        }
+
+        if (location < 0) {
+            final int index = -1 - location;
+            return (frame, upvalues) -> upvalues[index].value;
+        }
+
+        final int slot = location;
+        return (frame, upvalues) -> {
+            final Object value = frame[slot];
+            return value instanceof Cell cell ? cell.value : value;
+        };
+    }
+
+    private CompiledExpr[] compileArguments(Expr.Call expr) {
+        final CompiledExpr[] arguments = new CompiledExpr[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        return arguments;
+    }
+
+    private static Object[] evaluateAll(CompiledExpr[] expressions, Object[] frame, Cell[] upvalues) {
+        final Object[] values = new Object[expressions.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = expressions[i].evaluate(frame, upvalues);
+        }
+
+        return values;
+    }
+}
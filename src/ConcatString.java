@@ -0,0 +1,83 @@
+/**
+ * a Lox string produced by `+` that hasn't been flattened into a java.lang.String yet.
+ * the characters live in a StringBuilder that may be shared with the strings it was built from,
+ * each ConcatString only owns the first `length` characters of it. when the left operand of a
+ * concatenation still ends where the buffer ends, the right operand is appended in place, so
+ * building a string piece by piece in a loop is linear instead of quadratic.
+ * the String is materialized on demand (printing, comparing, hashing) and cached.
+ */
+public class ConcatString implements CharSequence {
+    // below this, copying both operands is cheaper than setting up a builder.
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat;
+
+    private ConcatString(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        final int length = left.length() + right.length();
+        if (length < MIN_LENGTH) {
+            return left.toString() + right.toString();
+        }
+
+        if (left instanceof ConcatString tip && tip.length == tip.buffer.length()) {
+            if (right instanceof ConcatString other && other.buffer == tip.buffer) {
+                right = other.toString();
+            }
+
+            appendTo(tip.buffer, right);
+            return new ConcatString(tip.buffer, length);
+        }
+
+        final StringBuilder buffer = new StringBuilder(Math.max(length * 2, MIN_LENGTH * 2));
+        appendTo(buffer, left);
+        appendTo(buffer, right);
+        return new ConcatString(buffer, length);
+    }
+
+    private static void appendTo(StringBuilder buffer, CharSequence text) {
+        if (text instanceof ConcatString concat) {
+            buffer.append(concat.buffer, 0, concat.length);
+        } else {
+            buffer.append(text);
+        }
+    }
+
+    /**
+     * strings that are about to be compared or hashed have to be plain java strings
+     */
+    static Object flatten(Object value) {
+        if (value instanceof ConcatString) return value.toString();
+        return value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(index);
+        return buffer.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = buffer.substring(0, length);
+        }
+
+        return flat;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * a `for` loop the Resolver recognized as counting a local number up or down by a constant, like
+ * `for (var i = 0; i < n; i = i + 1)`, where nothing but the increment assigns the counter and no closure captures it.
+ * the interpreter keeps such a counter in a Java double instead of boxing it through the frame on every step.
+ */
+public class CountedLoop {
+    final int slot;
+    final Expr.Binary condition;
+    final double step;
+
+    /**
+     * when the body never reads the counter it doesn't have to be written back to the frame at all
+     */
+    final boolean bodyReadsCounter;
+
+    CountedLoop(int slot, Expr.Binary condition, double step, boolean bodyReadsCounter) {
+        this.slot = slot;
+        this.condition = condition;
+        this.step = step;
+        this.bodyReadsCounter = bodyReadsCounter;
+    }
+}
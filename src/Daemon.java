@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a long running jlox that scripts are sent to over a Unix domain socket, so they run in a JVM that has already
+ * started, loaded the interpreter and JIT compiled it, instead of paying for all of that on every run.
+ * every script gets a fresh session and interpreter, on one of a fixed pool of workers, so scripts run side by side
+ * and a client that stalls only holds up its own worker. a client gets REQUEST_TIMEOUT to send its script, and its
+ * script the --timeout of the daemon (DEFAULT_TIMEOUT when it has none) to run, with REQUEST_TIMEOUT more to take the
+ * output, before its connection is closed. when every worker is busy and MAX_QUEUED clients are waiting, a new one is
+ * turned away with BUSY_STATUS.
+ * .....................................................................................................................
+ * the client sends the length of the script followed by its bytes. the daemon answers with frames of a kind byte
+ * and an int: STDOUT and STDERR frames carry that many bytes of output, the EXIT frame ends the response and its int
+ * is the status the client exits with, the same runFile would exit with. neither a script nor a frame is longer than
+ * MAX_LENGTH bytes.
+ */
+public class Daemon {
+    private static final byte STDOUT = 1;
+    private static final byte STDERR = 2;
+    private static final byte EXIT = 3;
+
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    static final int DEFAULT_TIMEOUT = 30_000;
+    private static final long REQUEST_TIMEOUT = 10_000;
+    private static final int MAX_QUEUED = 64;
+
+    /**
+     * what sysexits.h calls EX_TEMPFAIL, try again later
+     */
+    private static final int BUSY_STATUS = 75;
+
+    private Daemon() {}
+
+    /**
+     * serves scripts on socket until the process is stopped. workers get a stack of stackSize bytes, and scripts are
+     * expected to stop themselves after timeout milliseconds.
+     */
+    static void serve(Path socket, long stackSize, long timeout) throws IOException {
+        final int count = Runtime.getRuntime().availableProcessors();
+        final ExecutorService workers = new ThreadPoolExecutor(
+                count, count, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED),
+                task -> new Thread(null, task, "lox-worker", stackSize)
+        );
+        final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "lox-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+
+            // the socket file outlives the channel, take it with us when we're stopped.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException error) {
+                    // nothing left to do about it.
+                }
+            }));
+
+            while (true) {
+                final SocketChannel client = server.accept();
+                try {
+                    workers.execute(() -> {
+                        try (client) {
+                            handle(client, watchdog, timeout);
+                        } catch (Throwable error) {
+                            // the client went away, sent garbage or took too long, on to the next one.
+                        }
+                    });
+                } catch (RejectedExecutionException error) {
+                    reject(client);
+                }
+            }
+        }
+    }
+
+    private static void handle(SocketChannel client, ScheduledExecutorService watchdog, long timeout)
+            throws IOException {
+        // blocking channel reads and writes can't time out, closing the channel is what ends them.
+        ScheduledFuture<?> deadline = watchdog.schedule(() -> close(client), REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final DataInputStream request = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        final byte[] source = new byte[checkLength(request.readInt())];
+        request.readFully(source);
+
+        deadline.cancel(false);
+        deadline = watchdog.schedule(() -> close(client), timeout + REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final DataOutputStream response =
+                new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        final PrintStream stderr =
+                new PrintStream(new FrameOutputStream(response, STDERR), true, Charset.defaultCharset());
+
+        int status;
+        try {
+            status = Lox.runScript(
+                    new String(source, Charset.defaultCharset()),
+                    new FrameOutputStream(response, STDOUT),
+                    stderr
+            );
+        } catch (Throwable error) {
+            // running out of memory or stack, or a bug, ends this script and not the daemon.
+            stderr.println("Internal error: " + error);
+            status = 70;
+        }
+
+        response.writeByte(EXIT);
+        response.writeInt(status);
+        response.flush();
+        deadline.cancel(false);
+    }
+
+    /**
+     * answers a client there's no room for without reading its request, the little written fits in the socket's buffer.
+     */
+    private static void reject(SocketChannel client) {
+        try (client) {
+            final DataOutputStream response =
+                    new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            final byte[] message = "Server is busy.\n".getBytes(Charset.defaultCharset());
+            response.writeByte(STDERR);
+            response.writeInt(message.length);
+            response.write(message);
+            response.writeByte(EXIT);
+            response.writeInt(BUSY_STATUS);
+            response.flush();
+        } catch (IOException error) {
+            // it went away already.
+        }
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException error) {
+            // closed either way.
+        }
+    }
+
+    /**
+     * runs a script on the daemon listening at socket, passing its output through, and returns its exit status.
+     */
+    static int submit(Path socket, String script) throws IOException {
+        final byte[] source = Files.readAllBytes(Paths.get(script));
+        checkLength(source.length);
+
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            final DataOutputStream request =
+                    new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(source.length);
+            request.write(source);
+            request.flush();
+
+            final DataInputStream response =
+                    new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                final byte kind = response.readByte();
+                final int value = response.readInt();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return value;
+                }
+
+                final byte[] bytes = new byte[checkLength(value)];
+                response.readFully(bytes);
+
+                // keep stdout and stderr in the order the script wrote them.
+                if (kind == STDOUT) {
+                    System.err.flush();
+                    System.out.write(bytes, 0, bytes.length);
+                } else {
+                    System.out.flush();
+                    System.err.write(bytes, 0, bytes.length);
+                }
+            }
+        }
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Length " + length + " is out of range.");
+        }
+
+        return length;
+    }
+
+    /**
+     * wraps everything written to it into frames of one kind, of at most MAX_LENGTH bytes.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream response;
+        private final byte kind;
+
+        FrameOutputStream(DataOutputStream response, byte kind) {
+            this.response = response;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int frame = Math.min(length, MAX_LENGTH);
+                response.writeByte(kind);
+                response.writeInt(frame);
+                response.write(bytes, offset, frame);
+                offset += frame;
+                length -= frame;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            response.flush();
+        }
+    }
+}
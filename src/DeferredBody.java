@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the body of a function the Parser skipped over, only matching its braces, to be parsed on the function's first
+ * call. start is the token right after its '{', end the index of its '}'.
+ * only functions declared at the top level and methods of classes there without a superclass are deferred, they see
+ * no locals but their own and capture nothing, so their bodies resolve the same later on as they would have in line.
+ */
+public class DeferredBody {
+    final TokenBuffer tokens;
+    final int start;
+    final int end;
+    final boolean isMethod;
+
+    DeferredBody(TokenBuffer tokens, int start, int end, boolean isMethod) {
+        this.tokens = tokens;
+        this.start = start;
+        this.end = end;
+        this.isMethod = isMethod;
+    }
+
+    public List<Stmt> parse(ErrorSink errors) {
+        return new Parser(tokens, errors).deferredBody(start);
+    }
+
+    /**
+     * every name the body mentions, without parsing it.
+     */
+    public List<String> identifiers() {
+        final List<String> names = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            if (tokens.type(i) == TokenType.IDENTIFIER) names.add(tokens.lexeme(i));
+        }
+
+        return names;
+    }
+}
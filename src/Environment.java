@@ -1,64 +1,25 @@
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * the global variables. locals live in the frames the Resolver lays out, see FrameLayout.
+ */
 public class Environment {
-    public Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, GlobalCell> cells = new HashMap<>();
 
-    Environment() {
-        enclosing = null;
-    }
-
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    public GlobalCell cell(String name) {
+        return cells.computeIfAbsent(name, GlobalCell::new);
     }
 
     public void define(String name, Object value) {
-        values.put(name, value);
+        cell(name).define(value);
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) {
-            return enclosing.get(name);
-        }
-
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        return cell(name.lexeme).get(name);
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
-
-    public Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
-        }
-
-        return environment;
-    }
-
-    public  void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        cell(name.lexeme).assign(name, value);
     }
 }
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * where the Scanner, Parser and Resolver report errors. the sink of a Session passes them straight on to it, a
+ * buffered sink keeps them until they're drained into another one.
+ * work done ahead of time or on other threads reports into a buffer of its own, which is drained once the front end
+ * gets to that point in order, so errors come out the same as when everything is done one after the other.
+ */
+public class ErrorSink {
+    /**
+     * null when errors are buffered
+     */
+    private final Session session;
+
+    /**
+     * null when errors aren't buffered
+     */
+    private final List<Entry> entries;
+
+    private ErrorSink(Session session, List<Entry> entries) {
+        this.session = session;
+        this.entries = entries;
+    }
+
+    static ErrorSink reportingTo(Session session) {
+        return new ErrorSink(session, null);
+    }
+
+    static ErrorSink buffered() {
+        return new ErrorSink(null, new ArrayList<>());
+    }
+
+    public synchronized void error(int line, String message) {
+        if (entries == null) {
+            session.error(line, message);
+        } else {
+            entries.add(new Entry(null, line, message));
+        }
+    }
+
+    public synchronized void error(Token token, String message) {
+        if (entries == null) {
+            session.error(token, message);
+        } else {
+            entries.add(new Entry(token, token.line, message));
+        }
+    }
+
+    /**
+     * whether nothing has been buffered since the last drain, always true when errors aren't buffered.
+     */
+    public synchronized boolean isEmpty() {
+        return entries == null || entries.isEmpty();
+    }
+
+    public void drainTo(ErrorSink target) {
+        drainTo(target, 0);
+    }
+
+    /**
+     * reports everything buffered so far to target, in order. errors reported by line get lineOffset added to it.
+     */
+    public synchronized void drainTo(ErrorSink target, int lineOffset) {
+        for (Entry entry : entries) {
+            if (entry.token != null) {
+                target.error(entry.token, entry.message);
+            } else {
+                target.error(entry.line + lineOffset, entry.message);
+            }
+        }
+
+        entries.clear();
+    }
+
+    private static class Entry {
+        final Token token;
+        final int line;
+        final String message;
+
+        Entry(Token token, int line, String message) {
+            this.token = token;
+            this.line = line;
+            this.message = message;
+        }
+    }
+}
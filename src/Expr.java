@@ -97,6 +97,7 @@ abstract class Expr {
     }
 
     final Token name;
+    GlobalCell global;
   }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
@@ -111,6 +112,7 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    GlobalCell global;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
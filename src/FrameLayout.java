@@ -0,0 +1,34 @@
+/**
+ * what the Resolver worked out about the frame a function (or the top-level script) runs in.
+ * every local gets a slot in a flat Object[] frame, with the receiver of a method in slot 0 and the parameters
+ * right after it. closures don't keep the frame they were created in alive, they get the cells of the variables
+ * they use, `upvalues` says where each one comes from in the enclosing function when the closure is created.
+ */
+public class FrameLayout {
+    final int size;
+    final boolean hasReceiver;
+
+    /**
+     * whether the receiver and parameter slots hold cells, in slot order
+     */
+    final boolean[] capturedParameters;
+
+    /**
+     * a slot of the enclosing frame when >= 0, otherwise the enclosing function's upvalue at -1 - source
+     */
+    final int[] upvalues;
+
+    /**
+     * how often a function with this layout has been called, and its body once the Compiler has turned it into
+     * closures. the script runs only once and is never compiled.
+     */
+    int invocations = 0;
+    Compiler.CompiledStmt compiled;
+
+    FrameLayout(int size, boolean hasReceiver, boolean[] capturedParameters, int[] upvalues) {
+        this.size = size;
+        this.hasReceiver = hasReceiver;
+        this.capturedParameters = capturedParameters;
+        this.upvalues = upvalues;
+    }
+}
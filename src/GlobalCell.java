@@ -0,0 +1,35 @@
+/**
+ * the storage for one global variable. a cell exists as soon as anything asks for the name, defined or not, and is
+ * never replaced: defining the variable later, or again in the REPL, just fills it in. so a Variable or Assign
+ * that refers to a global can look its cell up once and keep it.
+ */
+public class GlobalCell {
+    final String name;
+    Object value;
+    boolean defined = false;
+
+    GlobalCell(String name) {
+        this.name = name;
+    }
+
+    public Object get(Token token) {
+        if (defined) return value;
+
+        throw new RuntimeError(token,
+                "Undefined variable '" + name + "'.");
+    }
+
+    public void assign(Token token, Object value) {
+        if (!defined) {
+            throw new RuntimeError(token,
+                    "Undefined variable '" + name + "'.");
+        }
+
+        this.value = value;
+    }
+
+    public void define(Object value) {
+        this.value = value;
+        this.defined = true;
+    }
+}
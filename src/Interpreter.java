@@ -1,31 +1,74 @@
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    public final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private static final Cell[] NO_UPVALUES = new Cell[0];
 
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    public final Environment globals = new Environment();
 
+    /**
+     * the locals of the function that's running, and the cells of the variables it captured.
+     */
+    private Object[] frame = new Object[0];
+    private Cell[] upvalues = NO_UPVALUES;
+
+    /**
+     * what the Resolver found out, the tables are used here directly.
+     */
+    final Resolution resolution = new Resolution();
+    private final Map<Expr, Integer> locals = resolution.locals;
+    private final Map<Expr.Super, Integer> receivers = resolution.receivers;
+    private final Map<Token, Integer> slots = resolution.slots;
+    private final Map<Stmt.Function, FrameLayout> layouts = resolution.layouts;
+    private final Set<Expr> tailCalls = resolution.tailCalls;
+    private final Map<Stmt.For, CountedLoop> countedLoops = resolution.countedLoops;
+    private FrameLayout script;
+    final Session session;
+    private final PrintBuffer out;
+    private final CallDepth callDepth;
+
+    /**
+     * code starts out in the tree walker. a function called invocationThreshold times is handed to the Compiler, an
+     * interim tier that turns it into closures, and runs as those from its next call on. a loop that went round
+     * backEdgeThreshold times is compiled and switches over right away, in the middle of running, since all of its
+     * state is in the frame.
+     */
+    static final int INVOCATION_THRESHOLD = 100;
+    static final int BACK_EDGE_THRESHOLD = 1000;
+
+    private final Compiler compiler = new Compiler(this);
+    final int invocationThreshold;
+    final int backEdgeThreshold;
+    final Budget budget;
+
+    Interpreter(Session session, int maxDepth, int invocationThreshold, int backEdgeThreshold, Budget budget) {
+        this.session = session;
+        this.out = session.out;
+        this.callDepth = new CallDepth(maxDepth);
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+        this.budget = budget;
+
+        globals.define("clock", new LoxNative("clock", 0) {
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
                 return (double)System.currentTimeMillis();
             }
+        });
 
+        globals.define("flush", new LoxNative("flush", 0) {
             @Override
-            public String toString() {
-                return "<native fn>";
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.out.flush();
+                return null;
             }
         });
+
+        LoxArray.defineNatives(globals);
+        LoxMap.defineNatives(globals);
     }
 
     @Override
@@ -33,42 +76,47 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object right = evaluate(expr.right);
         Object left = evaluate(expr.left);
 
-        switch (expr.operator.type) {
+        return binary(expr.operator, left, right);
+    }
+
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case SLASH:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return  (double)left / (double)right;
             case STAR:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left * (double)right;
             case MINUS:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS: {
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (left instanceof CharSequence && right instanceof CharSequence) {
+                    budget.allocate(operator, Budget.STRING_BYTES + 2L * ((CharSequence)right).length());
+                    return ConcatString.concat((CharSequence)left, (CharSequence)right);
                 }
 
                 throw new RuntimeError(
-                        expr.operator,
+                        operator,
                         "Operands must be two numbers or two strings."
                 );
 
             }
             case GREATER:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumericOperands(expr.operator, left, right);
+                checkNumericOperands(operator, left, right);
                 return (double)left <= (double)right;
 
             case BANG_EQUAL: return !isEqual(left, right);
@@ -109,9 +157,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
 
-        Object out = switch (expr.operator.type) {
+        return unary(expr.operator, right);
+    }
+
+    Object unary(Token operator, Object right) {
+        Object out = switch (operator.type) {
             case MINUS -> {
-                checkNumericOperand(expr.operator, right);
+                checkNumericOperand(operator, right);
                 yield -(double) right;
             }
             case BANG -> !isTruthy(right);
@@ -124,18 +176,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        // a global site goes straight to the cell it looked up the first time it ran.
+        if (expr.global != null) {
+            return expr.global.get(expr.name);
+        }
+
+        Integer location = locals.get(expr);
+        if (location != null) {
+            return load(location);
+        }
+
+        expr.global = globals.cell(expr.name.lexeme);
+        return expr.global.get(expr.name);
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.global != null) {
+            expr.global.assign(expr.name, value);
+            return value;
+        }
+
+        Integer location = locals.get(expr);
+        if (location != null) {
+            store(location, value);
         } else {
-            globals.assign(expr.name, value);
+            expr.global = globals.cell(expr.name.lexeme);
+            expr.global.assign(expr.name, value);
         }
 
         return value;
@@ -167,8 +236,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        final LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        // declared before the closure is made so a local function can capture itself.
+        declare(stmt.name, null);
+        initialize(stmt.name, closure(stmt, false));
         return null;
     }
 
@@ -176,11 +246,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        final int count = expr.arguments.size();
+        if (count > 3) {
+            return call(expr, callee, count, null, null, null, evaluateArguments(expr));
         }
 
+        // arguments still evaluate left to right, they just go into locals instead of a list.
+        Object first = count > 0 ? evaluate(expr.arguments.get(0)) : null;
+        Object second = count > 1 ? evaluate(expr.arguments.get(1)) : null;
+        Object third = count > 2 ? evaluate(expr.arguments.get(2)) : null;
+
+        return call(expr, callee, count, first, second, third, null);
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+
+        return arguments;
+    }
+
+    LoxCallable checkCallable(Expr.Call expr, Object callee, int count) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(
                     expr.paren,
@@ -190,13 +278,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         LoxCallable function = (LoxCallable)callee;
 
-        if (arguments.size() != function.arity()) {
+        if (count != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    count + ".");
+        }
+
+        return function;
+    }
+
+    /**
+     * the arguments come either all together in `arguments` or, for up to 3 of them, one by one with `arguments` null.
+     */
+    Object call(
+            Expr.Call expr, Object callee, int count,
+            Object first, Object second, Object third, Object[] arguments
+    ) {
+        LoxCallable function = checkCallable(expr, callee, count);
+
+        budget.step(expr.paren);
+        if (function instanceof LoxFunction) {
+            budget.allocate(expr.paren, Budget.FRAME_BYTES);
+        } else if (function instanceof LoxClass) {
+            budget.allocate(expr.paren, Budget.INSTANCE_BYTES + Budget.FRAME_BYTES);
         }
 
-        return function.call(this, arguments);
+        callDepth.push(expr.paren);
+        try {
+            if (arguments != null) return function.call(this, arguments);
+
+            switch (count) {
+                case 0: return function.call0(this);
+                case 1: return function.call1(this, first);
+                case 2: return function.call2(this, first, second);
+                default: return function.call3(this, first, second, third);
+            }
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        } catch (StackOverflowError error) {
+            // ran out of Java stack before reaching the Lox limit.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        } finally {
+            callDepth.pop();
+        }
     }
 
     @Override
@@ -206,12 +330,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-                distance, "super");
-
-        LoxInstance object = (LoxInstance)environment.getAt(
-                distance - 1, "this");
+        LoxClass superclass = (LoxClass)load(locals.get(expr));
+        LoxInstance object = (LoxInstance)load(receivers.get(expr));
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
@@ -228,24 +348,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     public void interpret(List<Stmt> statements) {
+        budget.start();
+        frame = new Object[script.size];
+        upvalues = NO_UPVALUES;
+
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            session.runtimeError(error);
         }
     }
 
     public String stringify(Object object) {
         if (object == null) { return "nil"; }
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Double) { return NumberFormatter.toString((double)object); }
 
         return object.toString();
     }
@@ -254,38 +372,79 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previousEnvironment = this.environment;
+    /**
+     * runs a single statement or expression in the given frame, for compiled code that leaves some of its work to
+     * the tree walker.
+     */
+    void executeIn(Stmt stmt, Object[] frame, Cell[] upvalues) {
+        Object[] previousFrame = this.frame;
+        Cell[] previousUpvalues = this.upvalues;
+
+        try {
+            this.frame = frame;
+            this.upvalues = upvalues;
+            execute(stmt);
+        } finally {
+            this.frame = previousFrame;
+            this.upvalues = previousUpvalues;
+        }
+    }
+
+    Object evaluateIn(Expr expr, Object[] frame, Cell[] upvalues) {
+        Object[] previousFrame = this.frame;
+        Cell[] previousUpvalues = this.upvalues;
+
+        try {
+            this.frame = frame;
+            this.upvalues = upvalues;
+            return evaluate(expr);
+        } finally {
+            this.frame = previousFrame;
+            this.upvalues = previousUpvalues;
+        }
+    }
+
+    /**
+     * runs a function body in its own frame, the caller's frame is back in place when it returns or throws.
+     */
+    public void executeBody(List<Stmt> statements, Object[] frame, Cell[] upvalues) {
+        Object[] previousFrame = this.frame;
+        Cell[] previousUpvalues = this.upvalues;
 
         try {
-            this.environment = environment;
+            this.frame = frame;
+            this.upvalues = upvalues;
 
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } finally {
-            this.environment = previousEnvironment;
+            this.frame = previousFrame;
+            this.upvalues = previousUpvalues;
         }
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
 
         return true;
     }
 
-    private void checkNumericOperand(Token operator, Object operand) {
+    static void checkNumericOperand(Token operator, Object operand) {
         if (operand instanceof Number) return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumericOperands(Token operator, Object left, Object right) {
+    static void checkNumericOperands(Token operator, Object left, Object right) {
         if (left instanceof Number && right instanceof Number) return;
         throw new RuntimeError(operator, "Operands must be numbers");
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
+        a = ConcatString.flatten(a);
+        b = ConcatString.flatten(b);
+
         if (a == null && b == null) return true;
         if (a == null) return false;
 
@@ -294,11 +453,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        if (value instanceof Double) {
+            out.print((double)value);
+            out.newLine();
+        } else {
+            out.println(stringify(value));
+        }
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
@@ -312,7 +479,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.name, value);
        return null;
     }
 
@@ -329,11 +496,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             superClass = (LoxClass)maybeSuperClass;
         }
 
-        environment.define(stmt.name.lexeme, null);
+        declare(stmt.name, null);
 
         if (stmt.superClass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superClass);
+            // the hidden `super` local, see Resolver.visitClassStmt.
+            declare(stmt.superClass.name, superClass);
         }
 
         /**
@@ -345,23 +512,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         final Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
             final boolean isInitializer = method.name.lexeme.equals("this");
-            final LoxFunction function = new LoxFunction(method, environment, isInitializer);
+            final LoxFunction function = closure(method, isInitializer);
             methods.put(method.name.lexeme, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme, methods, superClass);
-
-        if (superClass != null) {
-            environment = environment.enclosing;
-        }
-
-        environment.assign(stmt.name, klass);
+        initialize(stmt.name, klass);
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // a block's locals have their own slots in the function's frame, so there's nothing to set up.
+        for (Stmt statement : stmt.statements) {
+            execute(statement);
+        }
+
         return null;
     }
 
@@ -378,34 +544,281 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.compiled != null) {
+            stmt.compiled.execute(frame, upvalues);
+            return null;
+        }
+
         while (isTruthy(evaluate(stmt.condition))) {
+            budget.step(stmt.keyword);
+            execute(stmt.body);
+
+            // on stack replacement: the compiled loop picks up where we are, with the frame as it is now.
+            if (++stmt.backEdges == backEdgeThreshold) {
+                stmt.compiled = compiler.compile(stmt);
+                stmt.compiled.execute(frame, upvalues);
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * once a for loop is hot, `compiled` holds the loop without its initializer, which the tree walker still runs.
+     */
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) {
+            execute(stmt.initializer);
+        }
+
+        if (stmt.compiled != null) {
+            stmt.compiled.execute(frame, upvalues);
+            return null;
+        }
+
+        CountedLoop loop = countedLoops.get(stmt);
+        if (loop != null) {
+            executeCountedLoop(stmt, loop);
+            return null;
+        }
+
+        while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+            budget.step(stmt.keyword);
             execute(stmt.body);
+
+            if (stmt.increment != null) {
+                evaluate(stmt.increment);
+            }
+
+            if (++stmt.backEdges == backEdgeThreshold) {
+                replaceLoop(stmt);
+                return null;
+            }
         }
 
         return null;
     }
 
+    /**
+     * same as the general loop, but the counter lives in `counter` and the condition and increment are done here
+     * rather than by evaluating their expressions. the limit is still evaluated every iteration, it might change.
+     */
+    private void executeCountedLoop(Stmt.For stmt, CountedLoop loop) {
+        double counter = (double)frame[loop.slot];
+
+        final Expr.Binary condition = loop.condition;
+        while (true) {
+            final Object limit = evaluate(condition.right);
+            if (!(limit instanceof Double)) {
+                throw new RuntimeError(condition.operator, "Operands must be numbers");
+            }
+
+            final double bound = (double)limit;
+            final boolean more = switch (condition.operator.type) {
+                case LESS -> counter < bound;
+                case LESS_EQUAL -> counter <= bound;
+                case GREATER -> counter > bound;
+                default -> counter >= bound;
+            };
+            if (!more) break;
+
+            budget.step(stmt.keyword);
+            if (loop.bodyReadsCounter) {
+                frame[loop.slot] = counter;
+            }
+
+            execute(stmt.body);
+            counter += loop.step;
+
+            if (++stmt.backEdges == backEdgeThreshold) {
+                // the compiled loop reads the counter from its slot.
+                frame[loop.slot] = counter;
+                replaceLoop(stmt);
+                return;
+            }
+        }
+    }
+
+    /**
+     * compiles a hot loop and lets the compiled code run the rest of it, in the same frame.
+     */
+    private void replaceLoop(Stmt.For stmt) {
+        stmt.compiled = compiler.compileLoop(stmt);
+        stmt.compiled.execute(frame, upvalues);
+    }
+
+    /**
+     * compiles the body of a function that got called often enough, see LoxFunction.run
+     */
+    Compiler.CompiledStmt compile(List<Stmt> body) {
+        return compiler.compile(body);
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) {
+            if (tailCalls.contains(stmt.value)) {
+                tailCall((Expr.Call)stmt.value);
+            }
+
             value = evaluate(stmt.value);
         }
 
         throw new Return(value);
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * instead of calling a Lox function from here, which would nest its frame inside the one we're returning from,
+     * hand the call over to the caller's LoxFunction.call to run once our frame is gone.
+     */
+    private void tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        Object[] arguments = evaluateArguments(expr);
+
+        tailCall(expr, callee, arguments);
+    }
+
+    void tailCall(Expr.Call expr, Object callee, Object[] arguments) {
+        if (callee instanceof LoxFunction function && !function.isInitializer()) {
+            checkCallable(expr, function, arguments.length);
+            budget.step(expr.paren);
+            budget.allocate(expr.paren, Budget.FRAME_BYTES);
+            throw new TailCall(function, arguments);
+        }
+
+        throw new Return(call(expr, callee, arguments.length, null, null, null, arguments));
+    }
+
+    public void resolveScript(FrameLayout layout) {
+        script = layout;
+    }
+
+    /*
+     * the Compiler reads the same tables to bake the answers into the code it generates.
+     */
+
+    Integer location(Expr expr) {
+        return locals.get(expr);
+    }
+
+    Integer slot(Token declaration) {
+        return slots.get(declaration);
+    }
+
+    CountedLoop countedLoop(Stmt.For stmt) {
+        return countedLoops.get(stmt);
+    }
+
+    boolean isTailCall(Expr expr) {
+        return tailCalls.contains(expr);
     }
 
     private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        Integer location = locals.get(expr);
+        if (location != null) {
+            return load(location);
         } else {
             return globals.get(name);
         }
     }
 
+    private Object load(int location) {
+        if (location < 0) return upvalues[-1 - location].value;
+
+        final Object value = frame[location];
+        return value instanceof Cell ? ((Cell)value).value : value;
+    }
+
+    private void store(int location, Object value) {
+        if (location < 0) {
+            upvalues[-1 - location].value = value;
+            return;
+        }
+
+        if (frame[location] instanceof Cell) {
+            ((Cell)frame[location]).value = value;
+        } else {
+            frame[location] = value;
+        }
+    }
+
+    /**
+     * creates the variable a declaration introduces. a captured local gets a fresh cell every time its declaration
+     * runs, so each loop iteration's closures see their own copy.
+     */
+    private void declare(Token name, Object value) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            globals.define(name.lexeme, value);
+        } else if (slot < 0) {
+            frame[-1 - slot] = new Cell(value);
+        } else {
+            frame[slot] = value;
+        }
+    }
+
+    /**
+     * gives a variable that was just declared its value without replacing its cell.
+     */
+    private void initialize(Token name, Object value) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            globals.define(name.lexeme, value);
+        } else if (slot < 0) {
+            ((Cell)frame[-1 - slot]).value = value;
+        } else {
+            frame[slot] = value;
+        }
+    }
+
+    /**
+     * the layout of a function, after parsing and resolving its body if the Parser deferred that to its first call.
+     * errors in the body are reported like any other syntax or resolution error, then stop the script. the body stays
+     * deferred, so a later call reports them again. once resolved, the layout is kept on the declaration for every
+     * LoxFunction made from it, bound methods included.
+     */
+    public FrameLayout layout(Stmt.Function declaration) {
+        if (declaration.layout != null) return declaration.layout;
+
+        final DeferredBody deferred = declaration.deferred;
+        if (deferred == null) return layouts.get(declaration);
+
+        final ErrorSink errors = ErrorSink.buffered();
+        final List<Stmt> body = deferred.parse(errors);
+        if (errors.isEmpty()) {
+            declaration.body = body;
+            declaration.deferred = null;
+            Resolver.resolveDeferred(this, declaration, deferred.isMethod, errors);
+        }
+
+        if (!errors.isEmpty()) {
+            declaration.deferred = deferred;
+            errors.drainTo(session.errors);
+            throw new RuntimeError(declaration.name, "Can't call a function whose body has errors.");
+        }
+
+        declaration.layout = layouts.get(declaration);
+        return declaration.layout;
+    }
+
+    private LoxFunction closure(Stmt.Function declaration, boolean isInitializer) {
+        // a deferred function captures nothing, its layout is worked out when it's first called.
+        if (declaration.deferred != null) {
+            return new LoxFunction(declaration, null, new Cell[0], isInitializer);
+        }
+
+        final FrameLayout layout = layouts.get(declaration);
+
+        final Cell[] cells = new Cell[layout.upvalues.length];
+        for (int i = 0; i < cells.length; i++) {
+            final int source = layout.upvalues[i];
+            cells[i] = source >= 0 ? (Cell)frame[source] : upvalues[-1 - source];
+        }
+
+        return new LoxFunction(declaration, layout, cells, isInitializer);
+    }
+
 }
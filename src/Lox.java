@@ -1,84 +1,210 @@
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+/**
+ * the options are set once, from the command line, and shared by every run. everything a run changes is in its
+ * Session and Interpreter, so the daemon can run scripts side by side.
+ */
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  private static int maxDepth = CallDepth.DEFAULT_MAX_DEPTH;
+  private static int invocationThreshold = Interpreter.INVOCATION_THRESHOLD;
+  private static int backEdgeThreshold = Interpreter.BACK_EDGE_THRESHOLD;
+  private static int maxSteps = 0;
+  private static int timeout = 0;
+  private static int maxMemory = 0;
+  private static boolean lazy = false;
+  private static boolean reportShaken = false;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    String script = null;
+    String server = null;
+    String connect = null;
+
+    for (String arg : args) {
+      if (arg.startsWith("--max-depth=")) {
+        maxDepth = parsePositive(arg.substring("--max-depth=".length()));
+      } else if (arg.startsWith("--max-steps=")) {
+        maxSteps = parsePositive(arg.substring("--max-steps=".length()));
+      } else if (arg.startsWith("--timeout=")) {
+        timeout = parsePositive(arg.substring("--timeout=".length()));
+      } else if (arg.startsWith("--max-memory=")) {
+        maxMemory = parsePositive(arg.substring("--max-memory=".length()));
+      } else if (arg.equals("--lazy")) {
+        lazy = true;
+      } else if (arg.equals("--report-shaken")) {
+        reportShaken = true;
+      } else if (arg.startsWith("--server=")) {
+        server = arg.substring("--server=".length());
+      } else if (arg.startsWith("--connect=")) {
+        connect = arg.substring("--connect=".length());
+      } else if (arg.startsWith("--compile-threshold=")) {
+        invocationThreshold = parsePositive(arg.substring("--compile-threshold=".length()));
+      } else if (arg.startsWith("--loop-threshold=")) {
+        backEdgeThreshold = parsePositive(arg.substring("--loop-threshold=".length()));
+      } else if (script == null && !arg.startsWith("--")) {
+        script = arg;
+      } else {
+        usage();
+      }
+    }
+
+    if (connect != null) {
+      // the daemon does the work, this process only ships the script over and relays what comes back.
+      if (script == null || server != null) usage();
+      System.exit(Daemon.submit(Paths.get(connect), script));
+    }
+
+    if (server != null) {
+      if (script != null) usage();
+      script = server;
+      // a script that never ends would keep a worker from every other client.
+      if (timeout == 0) timeout = Daemon.DEFAULT_TIMEOUT;
+    }
+
+    // give the interpreter a thread whose stack is big enough for maxDepth Lox calls, whatever -Xss says.
+    final String path = script;
+    final boolean serve = server != null;
+    final IOException[] failure = new IOException[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        start(path, serve);
+      } catch (IOException error) {
+        failure[0] = error;
+      }
+    }, "lox", CallDepth.stackSize(maxDepth));
+
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (failure[0] != null) throw failure[0];
+  }
+
+  private static void start(String script, boolean serve) throws IOException {
+    if (serve) {
+      Daemon.serve(Paths.get(script), CallDepth.stackSize(maxDepth), timeout);
+    } else if (script != null) {
+      runFile(script);
     } else {
       runPrompt();
     }
   }
 
-  static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() +
-      "\n[line " + error.token.line + "]");
-    hadRuntimeError = true;
+  private static int parsePositive(String text) {
+    try {
+      int value = Integer.parseInt(text);
+      if (value > 0) return value;
+    } catch (NumberFormatException error) {
+      // reported below.
+    }
+
+    usage();
+    return 0;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--max-depth=N] [--compile-threshold=N] [--loop-threshold=N]\n" +
+      "            [--max-steps=N] [--timeout=MS] [--max-memory=MB] [--lazy]\n" +
+      "            [--report-shaken] [script]\n" +
+      "       jlox [options] --server=SOCKET\n" +
+      "       jlox --connect=SOCKET script");
+    System.exit(64);
   }
 
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
-    if (hadError) { System.exit(65); }
-    if (hadRuntimeError) { System.exit(70); }
+    int status = runScript(new String(bytes, Charset.defaultCharset()),
+      new FileOutputStream(FileDescriptor.out), System.err);
+    if (status != 0) { System.exit(status); }
+  }
+
+  /**
+   * runs a script in a fresh session and interpreter, and returns the status the process should exit with.
+   * the daemon calls this from many threads at once, with the output going to its client.
+   */
+  static int runScript(String source, OutputStream stdout, PrintStream stderr) {
+    Session session = new Session(new PrintBuffer(stdout), stderr);
+    try {
+      run(session, newInterpreter(session, budget()), source, true);
+    } finally {
+      session.out.flush();
+      session.err.flush();
+    }
+
+    return session.status();
+  }
+
+  private static Interpreter newInterpreter(Session session, Budget budget) {
+    return new Interpreter(session, maxDepth, invocationThreshold, backEdgeThreshold, budget);
+  }
+
+  /**
+   * a script's budget starts counting when it's about to run. --timeout is in milliseconds, --max-memory in MiB.
+   */
+  private static Budget budget() {
+    return new Budget(maxSteps, timeout, maxMemory * 1024L * 1024L);
   }
 
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
+    Session session = new Session(new PrintBuffer(new FileOutputStream(FileDescriptor.out)), System.err);
+    session.out.setLineBuffered(true);
+    // the limits are for scripts, a REPL session can take as long as it likes.
+    Interpreter interpreter = newInterpreter(session, Budget.unlimited());
 
     for (;;) {
       System.out.print("> ");
       String line = reader.readLine();
       if (line == null) break;
-      run(line);
-      hadError = false;
+      run(session, interpreter, line, false);
+      session.hadError = false;
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  /**
+   * a whole program is tree shaken before it runs, a line of the REPL can declare what later lines use.
+   */
+  private static void run(Session session, Interpreter interpreter, String source, boolean wholeProgram) {
+    Scanner scanner = new Scanner(source, session.errors);
+    TokenBuffer tokens = scanner.scanTokens();
 
-    Parser parser = new Parser(tokens);
+    // with --lazy the bodies of top-level functions and methods are parsed when they're first called.
+    Parser parser = new Parser(tokens, session.errors, lazy);
     List<Stmt> stmts = parser.parse();
     // Stop if there was a syntax error.
-    if (hadError) return;
+    if (session.hadError) return;
 
     Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(stmts);
-    if (hadError) return;
+    resolver.resolveScript(stmts);
+    if (session.hadError) return;
 
-    interpreter.interpret(stmts);
-  }
+    if (wholeProgram) {
+      TreeShaker shaker = new TreeShaker(stmts);
+      stmts = shaker.shake();
+      if (reportShaken) reportShaken(session, shaker.removed());
+    }
 
-  static void error(int line, String message) {
-    report(line, "", message);
+    interpreter.interpret(stmts);
   }
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+  private static void reportShaken(Session session, List<Stmt> removed) {
+    for (Stmt statement : removed) {
+      Token name = statement instanceof Stmt.Class klass ? klass.name : ((Stmt.Function)statement).name;
+      String kind = statement instanceof Stmt.Class ? "class" : "function";
+      session.err.println("[line " + name.line + "] Removed unused " + kind + " '" + name.lexeme + "'.");
     }
   }
-
-  private static void report(int line, String where, String message) {
-    System.err.println(
-      "[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
-  }
 }
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * a growable array of Lox values.
+ * as long as every element is a number the contents live unboxed in a double[], the first time anything
+ * else is stored the array de-specializes into an Object[] and stays that way.
+ * slots nothing has been stored in yet are nil. in the double[] they hold HOLE, a NaN no arithmetic produces since
+ * no NaN with its payload ever gets out of an array.
+ */
+public class LoxArray {
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * the largest array the JVM reliably allocates
+     */
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final long HOLE_BITS = 0x7ff8_dead_0000_0000L;
+    private static final double HOLE = Double.longBitsToDouble(HOLE_BITS);
+
+    private double[] numbers;
+    private Object[] values;
+    private int size;
+
+    LoxArray(int size) {
+        this.numbers = new double[Math.max(size, MIN_CAPACITY)];
+        this.size = size;
+        Arrays.fill(numbers, 0, size, HOLE);
+    }
+
+    public int length() {
+        return size;
+    }
+
+    public Object get(int index) {
+        if (numbers != null) {
+            final double number = numbers[index];
+            return Double.doubleToRawLongBits(number) == HOLE_BITS ? null : number;
+        }
+
+        return values[index];
+    }
+
+    public void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double)value;
+                return;
+            }
+
+            despecialize();
+        }
+
+        values[index] = value;
+    }
+
+    public void push(Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                if (size == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                }
+
+                numbers[size++] = (double)value;
+                return;
+            }
+
+            despecialize();
+        }
+
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        values[size++] = value;
+    }
+
+    private void despecialize() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = get(i);
+        }
+
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+
+            final Object element = get(i);
+            if (element == null) {
+                builder.append("nil");
+            } else if (element instanceof Double) {
+                builder.append(NumberFormatter.toString((double)element));
+            } else {
+                builder.append(element);
+            }
+        }
+
+        return builder.append("]").toString();
+    }
+
+    static void defineNatives(Environment globals) {
+        globals.define("array", new LoxNative("array", 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final Object size = arguments.get(0);
+                if (!(size instanceof Double) || (double)size < 0 || (double)size != Math.floor((double)size)) {
+                    throw new NativeError("Array size must be a non-negative integer.");
+                }
+
+                if ((double)size > MAX_SIZE) {
+                    throw new NativeError("Array size is too large.");
+                }
+
+                interpreter.budget.allocate(Budget.ELEMENT_BYTES * (long)(double)size);
+
+                return new LoxArray((int)(double)size);
+            }
+        });
+
+        globals.define("arrayGet", new LoxNative("arrayGet", 2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final LoxArray array = checkArray(arguments.get(0));
+                return array.get(checkIndex(array, arguments.get(1)));
+            }
+        });
+
+        globals.define("arraySet", new LoxNative("arraySet", 3) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final LoxArray array = checkArray(arguments.get(0));
+                final Object value = arguments.get(2);
+                array.set(checkIndex(array, arguments.get(1)), value);
+                return value;
+            }
+        });
+
+        globals.define("arrayPush", new LoxNative("arrayPush", 2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final LoxArray array = checkArray(arguments.get(0));
+                interpreter.budget.allocate(Budget.ELEMENT_BYTES);
+                array.push(arguments.get(1));
+                return null;
+            }
+        });
+
+        globals.define("arrayLength", new LoxNative("arrayLength", 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double)checkArray(arguments.get(0)).length();
+            }
+        });
+    }
+
+    private static LoxArray checkArray(Object object) {
+        if (object instanceof LoxArray) return (LoxArray)object;
+        throw new NativeError("Operand must be an array.");
+    }
+
+    private static int checkIndex(LoxArray array, Object index) {
+        if (!(index instanceof Double)) {
+            throw new NativeError("Array index must be a number.");
+        }
+
+        final double value = (double)index;
+        if (value != Math.floor(value) || value < 0 || value >= array.size) {
+            throw new NativeError("Array index out of bounds.");
+        }
+
+        return (int)value;
+    }
+}
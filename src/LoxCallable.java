@@ -1,6 +1,33 @@
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    /*
+     * call sites with up to 3 arguments pass them directly and longer ones pass an array, so the interpreter never
+     * has to build a list for a call. callables that care about the cost override these, the rest get the list.
+     */
+
+    default Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, Arrays.asList(arguments));
+    }
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object first) {
+        return call(interpreter, Arrays.asList(first));
+    }
+
+    default Object call2(Interpreter interpreter, Object first, Object second) {
+        return call(interpreter, Arrays.asList(first, second));
+    }
+
+    default Object call3(Interpreter interpreter, Object first, Object second, Object third) {
+        return call(interpreter, Arrays.asList(first, second, third));
+    }
 }
@@ -16,6 +16,13 @@ public class LoxClass implements LoxCallable {
 
     final LoxClass superClass;
 
+    /**
+     * a class can't change once it's declared, so the initializer and the arity it gives the class are looked up once
+     * here instead of on every constructor call.
+     */
+    private final LoxFunction initializer;
+    private final int arity;
+
     LoxClass(
             String name,
             Map<String, LoxFunction> methods,
@@ -24,6 +31,8 @@ public class LoxClass implements LoxCallable {
         this.name = name;
         this.methods = methods;
         this.superClass = superClass;
+        this.initializer = findMethod("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -33,18 +42,61 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return construct(interpreter, arguments.size(), null, null, null, arguments.toArray());
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return construct(interpreter, arguments.length, null, null, null, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return construct(interpreter, 0, null, null, null, null);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object first) {
+        return construct(interpreter, 1, first, null, null, null);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        return construct(interpreter, 2, first, second, null, null);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object first, Object second, Object third) {
+        return construct(interpreter, 3, first, second, third, null);
+    }
+
+    /**
+     * makes a new instance and runs the initializer on it. the arguments come the way Interpreter.call passes them:
+     * either all together in `arguments` or, for up to 3 of them, one by one with `arguments` null.
+     */
+    private LoxInstance construct(
+            Interpreter interpreter, int count,
+            Object first, Object second, Object third, Object[] arguments
+    ) {
         final LoxInstance instance = new LoxInstance(this);
+        if (initializer == null) return instance;
+
+        final LoxFunction bound = initializer.bind(instance);
+        if (arguments != null) {
+            bound.call(interpreter, arguments);
+            return instance;
+        }
 
-        final LoxFunction initializer = findMethod("init");
-        if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+        switch (count) {
+            case 0: bound.call0(interpreter); break;
+            case 1: bound.call1(interpreter, first); break;
+            case 2: bound.call2(interpreter, first, second); break;
+            default: bound.call3(interpreter, first, second, third); break;
         }
 
         return instance;
@@ -1,18 +1,41 @@
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
-    private final Environment closure;
     private final Stmt.Function declaration;
+
+    /**
+     * null until the first call when the function's body was deferred.
+     */
+    private FrameLayout layout;
+
+    /**
+     * the cells of the variables this function uses from enclosing functions, and nothing more of their frames.
+     */
+    private final Cell[] upvalues;
     private final boolean isInitializer;
+    private final LoxInstance receiver;
 
     LoxFunction(
             Stmt.Function declaration,
-            Environment closure,
+            FrameLayout layout,
+            Cell[] upvalues,
             boolean isInitializer
+    ) {
+        this(declaration, layout, upvalues, isInitializer, null);
+    }
+
+    private LoxFunction(
+            Stmt.Function declaration,
+            FrameLayout layout,
+            Cell[] upvalues,
+            boolean isInitializer,
+            LoxInstance receiver
     ) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.layout = layout;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -20,38 +43,115 @@ public class LoxFunction implements LoxCallable {
         return declaration.parameters.size();
     }
 
+    public boolean isInitializer() {
+        return isInitializer;
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        final var environment = new Environment(closure);
-        final var params = declaration.parameters;
-
-        for (int i = 0; i < params.size(); i++) {
-            environment.define(
-                    params.get(i).lexeme,
-                    arguments.get(i)
-            );
+        return call(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return run(interpreter, bindParameters(interpreter, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, newFrame(interpreter));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object first) {
+        final Object[] frame = newFrame(interpreter);
+        bindParameter(frame, 0, first);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        final Object[] frame = newFrame(interpreter);
+        bindParameter(frame, 0, first);
+        bindParameter(frame, 1, second);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object first, Object second, Object third) {
+        final Object[] frame = newFrame(interpreter);
+        bindParameter(frame, 0, first);
+        bindParameter(frame, 1, second);
+        bindParameter(frame, 2, third);
+        return run(interpreter, frame);
+    }
+
+    private Object[] newFrame(Interpreter interpreter) {
+        if (layout == null) layout = interpreter.layout(declaration);
+
+        final Object[] frame = new Object[layout.size];
+        if (layout.hasReceiver) {
+            frame[0] = layout.capturedParameters[0] ? new Cell(receiver) : receiver;
         }
 
-        try {
-            interpreter.executeBlock(
-                    declaration.body,
-                    environment
-            );
-        } catch (Return ret) {
-            return ret.value;
+        return frame;
+    }
+
+    private void bindParameter(Object[] frame, int index, Object value) {
+        final int slot = layout.hasReceiver ? index + 1 : index;
+        frame[slot] = layout.capturedParameters[slot] ? new Cell(value) : value;
+    }
+
+    private Object[] bindParameters(Interpreter interpreter, Object[] arguments) {
+        final Object[] frame = newFrame(interpreter);
+        for (int i = 0; i < arguments.length; i++) {
+            bindParameter(frame, i, arguments[i]);
         }
 
-        if (isInitializer) { closure.getAt(0, "this"); }
-        return null;
+        return frame;
+    }
+
+    /**
+     * runs the body in a frame that already has the parameters bound.
+     */
+    private Object run(Interpreter interpreter, Object[] frame) {
+        LoxFunction function = this;
+
+        // calls in tail position come back here as a TailCall, we run them in place of the function that made them.
+        while (true) {
+            try {
+                final FrameLayout layout = function.layout;
+                if (layout.compiled == null && ++layout.invocations == interpreter.invocationThreshold) {
+                    layout.compiled = interpreter.compile(function.declaration.body);
+                }
+
+                if (layout.compiled != null) {
+                    layout.compiled.execute(frame, function.upvalues);
+                } else {
+                    interpreter.executeBody(
+                            function.declaration.body,
+                            frame,
+                            function.upvalues
+                    );
+                }
+            } catch (TailCall tail) {
+                function = tail.function;
+                frame = function.bindParameters(interpreter, tail.arguments);
+                continue;
+            } catch (Return ret) {
+                return ret.value;
+            }
+
+            if (function.isInitializer) { return function.receiver; }
+            return null;
+        }
     }
 
     public LoxFunction bind(LoxInstance instance) {
         /**
-         * you define an implicit scope just outside the methods scope that define or binds to an instance
+         * a bound method is the same function with `this` filled in, it goes in slot 0 of every frame it runs in.
          */
-        final Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, layout, upvalues, isInitializer, instance);
     }
 
     @Override
@@ -60,5 +160,3 @@ public class LoxFunction implements LoxCallable {
     }
 
 }
-
-
@@ -0,0 +1,253 @@
+import java.util.List;
+
+/**
+ * a hash map from Lox values to Lox values using open addressing with linear probing.
+ * number keys are kept unboxed in their own array, every other key is stored alongside its hash
+ * so it's hashed once on insertion and never again while probing or growing.
+ * deleted slots are left as tombstones until the next resize.
+ * the backing arrays are charged to the budget whenever they're allocated, ENTRY_BYTES a slot.
+ */
+public class LoxMap {
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte OBJECT = 2;
+    private static final byte DELETED = 3;
+
+    static final int INITIAL_CAPACITY = 16;
+
+    private byte[] states;
+    private double[] numberKeys;
+    private Object[] objectKeys;
+    private int[] hashes;
+    private Object[] values;
+
+    private int size;
+    private int used;
+
+    LoxMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(Object key) {
+        final int slot = find(key);
+        return slot < 0 ? null : values[slot];
+    }
+
+    public boolean has(Object key) {
+        return find(key) >= 0;
+    }
+
+    public void set(Object key, Object value, Budget budget) {
+        final int slot = find(key);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        if ((used + 1) * 2 > states.length) {
+            resize(budget);
+        }
+
+        if (key instanceof Double) {
+            final double number = (double)key;
+            final int hash = hashNumber(number);
+            final int target = insertionSlot(hash);
+            if (states[target] == EMPTY) used++;
+            states[target] = NUMBER;
+            numberKeys[target] = number;
+            hashes[target] = hash;
+            values[target] = value;
+        } else {
+            final int hash = spread(key.hashCode());
+            final int target = insertionSlot(hash);
+            if (states[target] == EMPTY) used++;
+            states[target] = OBJECT;
+            objectKeys[target] = key;
+            hashes[target] = hash;
+            values[target] = value;
+        }
+
+        size++;
+    }
+
+    public boolean delete(Object key) {
+        final int slot = find(key);
+        if (slot < 0) return false;
+
+        states[slot] = DELETED;
+        objectKeys[slot] = null;
+        values[slot] = null;
+        size--;
+        return true;
+    }
+
+    public LoxArray keys() {
+        final LoxArray keys = new LoxArray(size);
+        int index = 0;
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == NUMBER) {
+                keys.set(index++, numberKeys[i]);
+            } else if (states[i] == OBJECT) {
+                keys.set(index++, objectKeys[i]);
+            }
+        }
+
+        return keys;
+    }
+
+    private int find(Object key) {
+        final int mask = states.length - 1;
+
+        if (key instanceof Double) {
+            final long bits = Double.doubleToLongBits((double)key);
+            final int hash = hashNumber((double)key);
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                final byte state = states[i];
+                if (state == EMPTY) return -1;
+                if (state == NUMBER && hashes[i] == hash &&
+                        Double.doubleToLongBits(numberKeys[i]) == bits) {
+                    return i;
+                }
+            }
+        }
+
+        final int hash = spread(key.hashCode());
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final byte state = states[i];
+            if (state == EMPTY) return -1;
+            if (state == OBJECT && hashes[i] == hash && key.equals(objectKeys[i])) {
+                return i;
+            }
+        }
+    }
+
+    private int insertionSlot(int hash) {
+        final int mask = states.length - 1;
+        int i = hash & mask;
+        while (states[i] == NUMBER || states[i] == OBJECT) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private void resize(Budget budget) {
+        final byte[] oldStates = states;
+        final double[] oldNumberKeys = numberKeys;
+        final Object[] oldObjectKeys = objectKeys;
+        final int[] oldHashes = hashes;
+        final Object[] oldValues = values;
+
+        // only grow when live entries are what fills the table, otherwise rehashing is enough to drop the tombstones.
+        final int capacity = size * 4 > oldStates.length ? oldStates.length * 2 : oldStates.length;
+        budget.allocate(Budget.ENTRY_BYTES * capacity);
+        allocate(capacity);
+        used = size;
+
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] != NUMBER && oldStates[i] != OBJECT) continue;
+
+            final int target = insertionSlot(oldHashes[i]);
+            states[target] = oldStates[i];
+            numberKeys[target] = oldNumberKeys[i];
+            objectKeys[target] = oldObjectKeys[i];
+            hashes[target] = oldHashes[i];
+            values[target] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        states = new byte[capacity];
+        numberKeys = new double[capacity];
+        objectKeys = new Object[capacity];
+        hashes = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private static int hashNumber(double number) {
+        final long bits = Double.doubleToLongBits(number);
+        return spread((int)(bits ^ (bits >>> 32)));
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "<map " + size + ">";
+    }
+
+    static void defineNatives(Environment globals) {
+        globals.define("map", new LoxNative("map", 0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.budget.allocate(Budget.ENTRY_BYTES * INITIAL_CAPACITY);
+                return new LoxMap();
+            }
+        });
+
+        globals.define("mapGet", new LoxNative("mapGet", 2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return checkMap(arguments.get(0)).get(checkKey(arguments.get(1)));
+            }
+        });
+
+        globals.define("mapSet", new LoxNative("mapSet", 3) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final Object value = arguments.get(2);
+                checkMap(arguments.get(0)).set(checkKey(arguments.get(1)), value, interpreter.budget);
+                return value;
+            }
+        });
+
+        globals.define("mapHas", new LoxNative("mapHas", 2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return checkMap(arguments.get(0)).has(checkKey(arguments.get(1)));
+            }
+        });
+
+        globals.define("mapDelete", new LoxNative("mapDelete", 2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return checkMap(arguments.get(0)).delete(checkKey(arguments.get(1)));
+            }
+        });
+
+        globals.define("mapSize", new LoxNative("mapSize", 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double)checkMap(arguments.get(0)).size();
+            }
+        });
+
+        /*
+         * iteration goes through a snapshot of the keys so the map can be modified while a script walks it.
+         */
+        globals.define("mapKeys", new LoxNative("mapKeys", 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                final LoxMap map = checkMap(arguments.get(0));
+                interpreter.budget.allocate(Budget.ELEMENT_BYTES * map.size());
+                return map.keys();
+            }
+        });
+    }
+
+    private static LoxMap checkMap(Object object) {
+        if (object instanceof LoxMap) return (LoxMap)object;
+        throw new NativeError("Operand must be a map.");
+    }
+
+    private static Object checkKey(Object key) {
+        if (key == null) throw new NativeError("Map key can't be nil.");
+        return ConcatString.flatten(key);
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.List;
+
+/**
+ * a function implemented in Java and exposed to Lox programs through the globals.
+ * natives report bad arguments by throwing a {@link NativeError}, the interpreter then
+ * attaches the token of the call site since a native has no token of its own.
+ */
+public abstract class LoxNative implements LoxCallable {
+    final String name;
+    private final int arity;
+
+    LoxNative(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public abstract Object call(Interpreter interpreter, List<Object> arguments);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
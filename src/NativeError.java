@@ -0,0 +1,5 @@
+public class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,104 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * turns Lox numbers into text the way `print` shows them: integers without a trailing ".0", everything else with
+ * the fewest digits that still read back as the same double.
+ * digits are written as ASCII bytes straight into the caller's buffer so printing a number doesn't create any strings.
+ * .....................................................................................................................
+ * integers below 10^7 go through a long. other numbers in the range Double.toString shows without an exponent try
+ * 1, 2, 3... fractional digits and stop at the first that round trips. the check is exact since both the digits and
+ * the power of ten are exactly representable as doubles, so the division is correctly rounded (Clinger's fast path).
+ * anything else falls back to Double.toString.
+ */
+final class NumberFormatter {
+    static final int MAX_LENGTH = 32;
+
+    private static final double MAX_PLAIN = 1e7;
+    private static final double MIN_PLAIN = 1e-3;
+    private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+    private static final int MAX_FRACTION_DIGITS = 17;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_FRACTION_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private NumberFormatter() {}
+
+    static String toString(double value) {
+        final byte[] bytes = new byte[MAX_LENGTH];
+        final int length = format(value, bytes, 0);
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * writes at most MAX_LENGTH bytes into dest starting at offset, returns the offset past the last byte written
+     */
+    static int format(double value, byte[] dest, int offset) {
+        final boolean negative = Double.doubleToRawLongBits(value) < 0;
+        final double magnitude = Math.abs(value);
+
+        if (magnitude < MAX_PLAIN && magnitude == (long)magnitude) {
+            if (negative) dest[offset++] = '-';
+            return writeDigits((long)magnitude, dest, offset, 0);
+        }
+
+        if (magnitude >= MIN_PLAIN && magnitude < MAX_PLAIN) {
+            for (int fractionDigits = 1; fractionDigits <= MAX_FRACTION_DIGITS; fractionDigits++) {
+                final long power = POWERS_OF_TEN[fractionDigits];
+                final double scaled = magnitude * power;
+                if (scaled >= MAX_EXACT) break;
+
+                final long digits = Math.round(scaled);
+                if (digits / (double)power != magnitude) continue;
+
+                if (negative) dest[offset++] = '-';
+                offset = writeDigits(digits / power, dest, offset, 0);
+                dest[offset++] = '.';
+
+                long fraction = digits % power;
+                int width = fractionDigits;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    width--;
+                }
+
+                return writeDigits(fraction, dest, offset, width);
+            }
+        }
+
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            dest[offset++] = (byte)text.charAt(i);
+        }
+
+        return offset;
+    }
+
+    /**
+     * writes a non-negative number, left padded with zeros up to width digits
+     */
+    private static int writeDigits(long number, byte[] dest, int offset, int width) {
+        int count = 1;
+        for (long rest = number / 10; rest != 0; rest /= 10) {
+            count++;
+        }
+        count = Math.max(count, width);
+
+        int position = offset + count;
+        for (int i = 0; i < count; i++) {
+            dest[--position] = (byte)('0' + number % 10);
+            number /= 10;
+        }
+
+        return offset + count;
+    }
+}
@@ -1,18 +1,51 @@
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 public class Parser {
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final ErrorSink errors;
     private int curr = 0;
 
-    Parser(List<Token> tokens) {
+    /**
+     * whether bodies of functions that can be parsed later are only brace-matched for now, see DeferredBody.
+     */
+    private final boolean lazy;
+
+    /**
+     * how many blocks deep the parser is, functions can only be deferred outside of all of them.
+     */
+    private int depth = 0;
+
+    /**
+     * sources with at least this many tokens have their top-level functions and classes parsed in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    /**
+     * the declarations parsed ahead of time, by the index of the token they start at.
+     */
+    private Map<Integer, Preparsed> preparsed = null;
+
+    Parser(TokenBuffer tokens, ErrorSink errors) {
+        this(tokens, errors, false);
+    }
+
+    Parser(TokenBuffer tokens, ErrorSink errors, boolean lazy) {
         this.tokens = tokens;
+        this.errors = errors;
+        this.lazy = lazy;
     }
 
     List<Stmt> parse() {
+        if (tokens.size() >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1) {
+            preparse();
+        }
+
         List<Stmt> statements = new ArrayList<>();
 
         while(!isAtEnd()) {
@@ -23,16 +56,74 @@ public class Parser {
     }
 
     private Stmt declaration() {
+        // the preparse takes every declaration outside braces for a top-level one, after a syntax error this parser
+        // may still be inside a block there.
+        if (preparsed != null && depth == 0) {
+            final Preparsed declaration = preparsed.get(curr);
+            if (declaration != null) {
+                declaration.errors.drainTo(errors);
+                curr = declaration.end;
+                return declaration.stmt;
+            }
+        }
+
         try {
             if (match(TokenType.VAR)) { return varStatement(); }
             if (match(TokenType.CLASS)) { return klass(); }
-            if (match(TokenType.FUN)) { return function("function"); }
+            if (match(TokenType.FUN)) { return function("function", lazy && depth == 0); }
             return statement();
         } catch (ParseError err) {
             synchronize();
             return null;
         }
     }
+
+    /**
+     * what declaration() returns only depends on the token it starts at, so the `fun` and `class` declarations
+     * outside of any braces are parsed up front, in parallel, each by a parser of its own with its errors buffered.
+     * declaration() takes the result, the errors and the position after it when it gets to one of those tokens at the
+     * top level, which makes the outcome the same as parsing it right there.
+     */
+    private void preparse() {
+        final List<Integer> starts = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            switch (tokens.type(i)) {
+                case LEFT_BRACE: depth++; break;
+                case RIGHT_BRACE: if (depth > 0) depth--; break;
+                case FUN:
+                case CLASS:
+                    if (depth == 0) starts.add(i);
+                    break;
+            }
+        }
+
+        final Preparsed[] declarations = new Preparsed[starts.size()];
+        IntStream.range(0, declarations.length).parallel().forEach(i -> {
+            final Parser parser = new Parser(tokens, ErrorSink.buffered(), lazy);
+            parser.curr = starts.get(i);
+            final Stmt stmt = parser.declaration();
+            declarations[i] = new Preparsed(stmt, parser.curr, parser.errors);
+        });
+
+        preparsed = new HashMap<>();
+        for (int i = 0; i < declarations.length; i++) {
+            preparsed.put(starts.get(i), declarations[i]);
+        }
+    }
+
+    private static class Preparsed {
+        final Stmt stmt;
+        final int end;
+        final ErrorSink errors;
+
+        Preparsed(Stmt stmt, int end, ErrorSink errors) {
+            this.stmt = stmt;
+            this.end = end;
+            this.errors = errors;
+        }
+    }
+
     private Stmt varStatement() {
         Token name = consume(TokenType.IDENTIFIER, "Expected variable to have a name");
 
@@ -41,7 +132,7 @@ public class Parser {
             initializer = expression();
         }
 
-        consume(TokenType.SEMICOLON, "Expected ';' after a variable declaration");
+        expect(TokenType.SEMICOLON, "Expected ';' after a variable declaration");
         return new Stmt.Var(name, initializer);
     }
 
@@ -50,43 +141,82 @@ public class Parser {
 
         Expr.Variable superClass = null;
         if (match(TokenType.LESS)) {
-            consume(TokenType.IDENTIFIER, "Expected super class name");
+            expect(TokenType.IDENTIFIER, "Expected super class name");
             superClass = new Expr.Variable(previous());
         }
 
-        consume(TokenType.LEFT_BRACE, "Expected '{' after class name");
+        expect(TokenType.LEFT_BRACE, "Expected '{' after class name");
 
         List<Stmt.Function> methods = new ArrayList<>();
         while (!check(TokenType. RIGHT_BRACE) && !isAtEnd()) {
-            methods.add((Stmt.Function)function("method")); // TODO: check return type of `function`
+            // methods of a subclass capture `super` from the frame the class is declared in, those are never deferred.
+            methods.add((Stmt.Function)function("method", lazy && depth == 0 && superClass == null));
         }
 
-        consume(TokenType.RIGHT_BRACE, "Expected '}' after class");
+        expect(TokenType.RIGHT_BRACE, "Expected '}' after class");
         return new Stmt.Class(name, superClass, methods);
     }
 
-    private Stmt function(String kind) {
+    private Stmt function(String kind, boolean deferrable) {
         Token name = consume(TokenType.IDENTIFIER, "Expected " + kind + " name");
 
-        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
                 if (parameters.size() >= 255) {
                     // in Java, you cannot have more than 255 + it's easier for the bytecode vm in the C version
                     //  1 of those 255 in Java is reserved for `this` the caller, so it's 254
-                    Lox.error(peek(), "Can't have more than 255 parameters.");
+                    errors.error(peek(), "Can't have more than 255 parameters.");
                 }
 
                 parameters.add(
                         consume(TokenType.IDENTIFIER, "Expect parameter name."));
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+
+        expect(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        Stmt.Function function = new Stmt.Function(name, parameters);
+
+        // a body without its closing brace is parsed right away, so the error is reported now.
+        final int end = deferrable ? closingBrace(curr) : -1;
+        if (end >= 0) {
+            function.deferred = new DeferredBody(tokens, curr, end, kind.equals("method"));
+            curr = end + 1;
+        } else {
+            function.body = block();
+        }
 
-        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
+        return function;
+    }
+
+    /**
+     * the index of the '}' that closes the block whose first token is at start, -1 when the tokens run out first.
+     */
+    private int closingBrace(int start) {
+        int open = 1;
+        for (int i = start; i < tokens.size(); i++) {
+            switch (tokens.type(i)) {
+                case LEFT_BRACE: open++; break;
+                case RIGHT_BRACE: if (--open == 0) return i; break;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * parses the body of a DeferredBody, starting at the token after its '{'. null when it has errors, they've been
+     * reported by then.
+     */
+    List<Stmt> deferredBody(int start) {
+        curr = start;
+        try {
+            return block();
+        } catch (ParseError err) {
+            return null;
+        }
     }
 
     private Stmt statement() {
@@ -100,7 +230,8 @@ public class Parser {
     }
 
     private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+        Token keyword = previous();
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(TokenType.SEMICOLON)) {
@@ -115,48 +246,33 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             condition = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+        expect(TokenType.SEMICOLON, "Expect ';' after loop condition.");
 
         Expr increment = null;
         if (!check(TokenType.RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) {
-            condition = new Expr.Literal(true);
-        }
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(keyword, initializer, condition, increment, body);
     }
 
     private Stmt whileStatement() {
-        consume(TokenType.LEFT_PAREN, "Expected a `(` after a while statement");
+        Token keyword = previous();
+        expect(TokenType.LEFT_PAREN, "Expected a `(` after a while statement");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expected a `)` after a while statement's condition");
+        expect(TokenType.RIGHT_PAREN, "Expected a `)` after a while statement's condition");
 
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt printStatement() {
         Expr expr = expression();
-        consume(TokenType.SEMICOLON, "Expected a `;` terminated print expression");
+        expect(TokenType.SEMICOLON, "Expected a `;` terminated print expression");
         return new Stmt.Print(expr);
     }
 
@@ -168,20 +284,20 @@ public class Parser {
             value = expression();
         }
 
-        consume(TokenType.SEMICOLON, "Expect ';' after return value");
+        expect(TokenType.SEMICOLON, "Expect ';' after return value");
         return new Stmt.Return(keyword, value);
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
-        consume(TokenType.SEMICOLON, "Expected a `;` after an expression");
+        expect(TokenType.SEMICOLON, "Expected a `;` after an expression");
         return new Stmt.Expression(expr);
     }
 
     private Stmt ifStatement() {
-        consume(TokenType.LEFT_PAREN, "Expected a `(` after an if statement");
+        expect(TokenType.LEFT_PAREN, "Expected a `(` after an if statement");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expected a `)` after an if statement's condition");
+        expect(TokenType.RIGHT_PAREN, "Expected a `)` after an if statement's condition");
 
         Stmt thenBranch = statement();
 
@@ -198,7 +314,7 @@ public class Parser {
     }
 
     private Expr assignment() {
-        Expr expr = or();
+        Expr expr = binary(OR);
 
         if (match(TokenType.EQUAL)) {
             Token equals = previous();
@@ -211,86 +327,67 @@ public class Parser {
                 return new Expr.Set(get.object, get.name, value);
             }
 
-            Lox.error(equals, "Invalid assignment target");
-        }
-
-        return expr;
-    }
-
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while(match(TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+            errors.error(equals, "Invalid assignment target");
         }
 
         return expr;
     }
 
-    private Expr comparison() {
-        Expr expr = term();
-
-        while(match(TokenType.LESS, TokenType.LESS_EQUAL, TokenType.GREATER, TokenType.GREATER_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
+    /**
+     * binary operators are parsed by precedence climbing over this table instead of one method per level.
+     * a higher number binds tighter, 0 means the token isn't a binary operator and ends the expression.
+     * all of them are left associative, so the right operand is parsed one level tighter than the operator.
+     */
+    private static final int OR = 1;
+    private static final int AND = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[TokenType.OR.ordinal()] = OR;
+        PRECEDENCE[TokenType.AND.ordinal()] = AND;
+        PRECEDENCE[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[TokenType.LESS.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.LESS_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.GREATER.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.MINUS.ordinal()] = TERM;
+        PRECEDENCE[TokenType.PLUS.ordinal()] = TERM;
+        PRECEDENCE[TokenType.STAR.ordinal()] = FACTOR;
+        PRECEDENCE[TokenType.SLASH.ordinal()] = FACTOR;
+    }
+
+    private Expr binary(int precedence) {
+        Expr expr = unary();
 
-    private Expr term() {
-        Expr expr = factor();
+        while (true) {
+            TokenType type = peekType();
+            int operatorPrecedence = PRECEDENCE[type.ordinal()];
+            if (operatorPrecedence < precedence) break;
 
-        while(match(TokenType.MINUS, TokenType.PLUS)) {
+            advance();
             Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+            Expr right = binary(operatorPrecedence + 1);
 
-        return expr;
-    }
-
-    private Expr factor() {
-        Expr expr = unary();
-
-        while(match(TokenType.STAR, TokenType.SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            if (type == TokenType.OR || type == TokenType.AND) {
+                expr = new Expr.Logical(expr, operator, right);
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
 
         return expr;
     }
 
     private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
+        TokenType type = peekType();
+        if (type == TokenType.BANG || type == TokenType.MINUS) {
+            advance();
             Token operator = previous();
             Expr right = unary();
             return new Expr.Unary(operator, right);
@@ -318,40 +415,43 @@ public class Parser {
     }
 
     private Expr primary() {
-        if (match(TokenType.FALSE)) {
-            return new Expr.Literal(false);
-        }
-        if (match(TokenType.TRUE)) {
-            return new Expr.Literal(true);
-        }
-        if (match(TokenType.NIL)) {
-            return new Expr.Literal(null);
-        }
-
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(TokenType.THIS)) {
-            return new Expr.This(previous());
-        }
-
-        if (match(TokenType.SUPER)) {
-            Token keyword = previous();
-
-            consume(TokenType.DOT, "Expect '.' after 'super'");
-            Token method = consume(TokenType.IDENTIFIER,
-                    "Expect superclass method name");
+        switch (peekType()) {
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(tokens.literal(curr - 1));
+            case THIS:
+                advance();
+                return new Expr.This(previous());
+            case SUPER: {
+                advance();
+                Token keyword = previous();
 
-            return new Expr.Super(keyword, method);
-        }
+                expect(TokenType.DOT, "Expect '.' after 'super'");
+                Token method = consume(TokenType.IDENTIFIER,
+                        "Expect superclass method name");
 
-        if (match(TokenType.IDENTIFIER)) { return new Expr.Variable(previous()); }
+                return new Expr.Super(keyword, method);
+            }
+            case IDENTIFIER:
+                advance();
+                return new Expr.Variable(previous());
+            case LEFT_PAREN: {
+                advance();
 
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+                Expr expr = expression();
+                expect(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
         }
 
         throw error(peek(), "Expects expression.");
@@ -362,7 +462,7 @@ public class Parser {
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
                 if (arguments.size() >= 255) {
-                    Lox.error(peek(), "Can't have more than 255 arguments.");
+                    errors.error(peek(), "Can't have more than 255 arguments.");
                 }
 
                 arguments.add(expression());
@@ -378,54 +478,71 @@ public class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(TokenType.RIGHT_BRACE) || isAtEnd()) {
-            statements.add(declaration());
+        depth++;
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+
+            expect(TokenType.RIGHT_BRACE, "Expected '}' after a block");
+        } finally {
+            depth--;
         }
 
-        consume(TokenType.RIGHT_BRACE, "Expected '}' after a block");
         return statements;
     }
 
     private Token consume(TokenType type, String message) {
-        if(check(type)) { return advance(); }
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    /**
+     * consume() for tokens the AST doesn't keep, which then never become Token objects.
+     */
+    private void expect(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
         }
 
-        return false;
+        throw error(peek(), message);
+    }
+
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
+
+        advance();
+        return true;
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) { curr++; }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return peekType() == TokenType.EOF;
+    }
+
+    private TokenType peekType() {
+        return tokens.type(curr);
     }
 
     private Token peek() {
-        return tokens.get(curr);
+        return tokens.token(curr);
     }
 
     private Token previous() {
-        return tokens.get(curr - 1);
+        return tokens.token(curr - 1);
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
@@ -434,9 +551,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) return;
+            if (tokens.type(curr - 1) == TokenType.SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
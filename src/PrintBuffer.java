@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * where `print` writes to.
+ * text is encoded as UTF-8 straight into a byte buffer which is handed to the underlying stream a whole block at a
+ * time, instead of going through System.out which locks and may flush on every line.
+ * the buffer is flushed when it's full, when asked to, and (by Lox) before exiting or reporting a runtime error.
+ * in line buffered mode, used by the REPL, every line is flushed as soon as it's complete.
+ * like PrintStream, a failed write doesn't throw, the output is just dropped from then on.
+ */
+public class PrintBuffer {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int count = 0;
+    private boolean lineBuffered = false;
+    private boolean failed = false;
+
+    PrintBuffer(OutputStream out) {
+        this.out = out;
+    }
+
+    public void setLineBuffered(boolean lineBuffered) {
+        this.lineBuffered = lineBuffered;
+    }
+
+    public void print(CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c >= 0x80) {
+                write(text.subSequence(i, length).toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            if (count == buffer.length) drain();
+            buffer[count++] = (byte)c;
+        }
+    }
+
+    public void print(double number) {
+        if (buffer.length - count < NumberFormatter.MAX_LENGTH) drain();
+        count = NumberFormatter.format(number, buffer, count);
+    }
+
+    public void println(CharSequence text) {
+        print(text);
+        newLine();
+    }
+
+    public void newLine() {
+        if (count == buffer.length) drain();
+        buffer[count++] = '\n';
+
+        if (lineBuffered) flush();
+    }
+
+    public void flush() {
+        drain();
+        if (failed) return;
+
+        try {
+            out.flush();
+        } catch (IOException error) {
+            failed = true;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (count == buffer.length) drain();
+
+            final int chunk = Math.min(bytes.length - offset, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+        }
+    }
+
+    private void drain() {
+        if (count == 0) return;
+
+        if (!failed) {
+            try {
+                out.write(buffer, 0, count);
+            } catch (IOException error) {
+                failed = true;
+            }
+        }
+
+        count = 0;
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * what the Resolver found out about a program, for the Interpreter and the Compiler to look up as it runs.
+ * parts of a program resolved on their own (on another thread) go into a Resolution of their own that is added
+ * to the interpreter's once they're done, nothing in one can clash with another since every entry is keyed by a
+ * different node of the AST.
+ */
+public class Resolution {
+    final Map<Expr, Integer> locals = new HashMap<>();
+    final Map<Expr.Super, Integer> receivers = new HashMap<>();
+    final Map<Token, Integer> slots = new HashMap<>();
+    final Map<Stmt.Function, FrameLayout> layouts = new HashMap<>();
+    final Set<Expr> tailCalls = new HashSet<>();
+    final Map<Stmt.For, CountedLoop> countedLoops = new HashMap<>();
+
+    /**
+     * a variable reference is at a slot of the current frame when location >= 0,
+     * and at upvalue -1 - location otherwise. references that aren't resolved are to globals.
+     */
+    public void resolve(Expr expr, int location) {
+        locals.put(expr, location);
+    }
+
+    public void resolveReceiver(Expr.Super expr, int location) {
+        receivers.put(expr, location);
+    }
+
+    public void resolveSlot(Token declaration, int slot, boolean captured) {
+        slots.put(declaration, captured ? -1 - slot : slot);
+    }
+
+    public void resolveFunction(Stmt.Function function, FrameLayout layout) {
+        layouts.put(function, layout);
+    }
+
+    public void resolveTailCall(Expr.Call expr) {
+        tailCalls.add(expr);
+    }
+
+    public void resolveCountedLoop(Stmt.For stmt, CountedLoop loop) {
+        countedLoops.put(stmt, loop);
+    }
+
+    public void addAll(Resolution other) {
+        locals.putAll(other.locals);
+        receivers.putAll(other.receivers);
+        slots.putAll(other.slots);
+        layouts.putAll(other.layouts);
+        tailCalls.addAll(other.tailCalls);
+        countedLoops.putAll(other.countedLoops);
+    }
+}
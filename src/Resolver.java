@@ -1,15 +1,49 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+public class Resolver implements  Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Resolution resolution;
+    private final ErrorSink errors;
+
+    /**
+     * the innermost local of each name in scope, each Local points to the one of the same name it shadows.
+     */
+    private final Map<String, Local> visible = new HashMap<>();
+
+    /**
+     * the locals in scope in the order they were declared, and where each open scope starts among them.
+     * a scope ends by taking its locals off the end again, so all scopes share the same storage.
+     */
+    private final List<Local> declared = new ArrayList<>();
+    private int[] scopeStarts = new int[16];
+    private int depth = 0;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
+    /**
+     * the frame that locals declared right now get their slots in, the top-level script has one too for the
+     * locals of its blocks.
+     */
+    private Frame frame = new Frame(null);
+
+    /**
+     * scripts with at least this many top-level functions and classes resolve those in parallel.
+     */
+    private static final int PARALLEL_DECLARATIONS = 32;
+
     Resolver(Interpreter interpreter) {
+        this(interpreter, interpreter.resolution, interpreter.session.errors);
+    }
+
+    private Resolver(Interpreter interpreter, Resolution resolution, ErrorSink errors) {
         this.interpreter = interpreter;
+        this.resolution = resolution;
+        this.errors = errors;
     }
 
     @Override
@@ -45,9 +79,9 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+        final Local local = visible.get(expr.name.lexeme);
+        if (local != null && local.depth == depth && !local.defined) {
+            errors.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
@@ -94,7 +128,7 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use `this` outside of a class");
+            errors.error(expr.keyword, "Can't use `this` outside of a class");
         }
 
         resolveLocal(expr, expr.keyword);
@@ -104,14 +138,21 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                     "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
 
         resolveLocal(expr, expr.keyword);
+
+        // the method is looked up on the superclass but bound to `this`, so that has to be found too.
+        final Integer receiver = locate("this", false);
+        if (receiver != null) {
+            resolution.resolveReceiver(expr, receiver);
+        }
+
         return null;
     }
 
@@ -148,20 +189,21 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
 
         if (stmt.superClass != null) {
             if (stmt.name.lexeme.equals(stmt.superClass.name.lexeme)) {
-                Lox.error(stmt.superClass.name,
+                errors.error(stmt.superClass.name,
                         "A class can't inherit from itself.");
             }
 
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superClass);
 
+            /**
+             * `super` is a hidden local of the frame the class is declared in, the methods capture it like any other
+             * variable. the token naming the superclass stands in for its declaration.
+             */
             beginScope();
-            scopes.peek().put("super", true);
+            declareHidden("super", stmt.superClass.name);
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
 
@@ -172,7 +214,6 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
             resolveFunction(method, declaration);
         }
 
-        endScope();
         if (stmt.superClass != null) { endScope(); }
 
         currentClass = enclosingClass;
@@ -190,12 +231,30 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // a block that declares nothing directly would get an empty scope, the statements in it see the same locals.
+        if (!declaresLocals(stmt)) {
+            resolve(stmt.statements);
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
         endScope();
         return null;
     }
 
+    private boolean declaresLocals(Stmt.Block block) {
+        for (Stmt statement : block.statements) {
+            if (statement instanceof Stmt.Var ||
+                statement instanceof Stmt.Function ||
+                statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         resolve(stmt.condition);
@@ -212,24 +271,162 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) { resolve(stmt.initializer); }
+        if (stmt.condition != null) { resolve(stmt.condition); }
+        resolve(stmt.body);
+        if (stmt.increment != null) { resolve(stmt.increment); }
+
+        final CountedLoop loop = countedLoop(stmt);
+        if (loop != null) {
+            resolution.resolveCountedLoop(stmt, loop);
+        }
+
+        endScope();
+        return null;
+    }
+
+    /**
+     * matches `for (var i = <number>; i <op> <limit>; i = i +/- <number>)` where <op> is a comparison, then checks
+     * that the condition and increment are the only places the counter is read and the increment the only place
+     * it's written (besides reads in the body), and that no closure captures it. the counter is then a number for
+     * the whole loop.
+     */
+    private CountedLoop countedLoop(Stmt.For stmt) {
+        if (!(stmt.initializer instanceof Stmt.Var var) ||
+            !(var.initializer instanceof Expr.Literal start) ||
+            !(start.value instanceof Double)) {
+            return null;
+        }
+
+        final String name = var.name.lexeme;
+
+        if (!(stmt.condition instanceof Expr.Binary condition) ||
+            !isVariable(condition.left, name)) {
+            return null;
+        }
+
+        switch (condition.operator.type) {
+            case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL: break;
+            default: return null;
+        }
+
+        if (!(stmt.increment instanceof Expr.Assign increment) ||
+            !increment.name.lexeme.equals(name) ||
+            !(increment.value instanceof Expr.Binary next)) {
+            return null;
+        }
+
+        final double step;
+        if (next.operator.type == TokenType.PLUS && isVariable(next.left, name) && isNumber(next.right)) {
+            step = (double)((Expr.Literal)next.right).value;
+        } else if (next.operator.type == TokenType.PLUS && isNumber(next.left) && isVariable(next.right, name)) {
+            step = (double)((Expr.Literal)next.left).value;
+        } else if (next.operator.type == TokenType.MINUS && isVariable(next.left, name) && isNumber(next.right)) {
+            step = -(double)((Expr.Literal)next.right).value;
+        } else {
+            return null;
+        }
+
+        final Local counter = visible.get(name);
+        if (counter.captured || counter.writes != 1) return null;
+
+        // the condition and the increment read it once each.
+        return new CountedLoop(counter.slot, condition, step, counter.reads > 2);
+    }
+
+    private boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable variable && variable.name.lexeme.equals(name);
+    }
+
+    private boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal literal && literal.value instanceof Double;
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            errors.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (currentFunction == FunctionType.INITIALIZER) {
-            Lox.error(stmt.keyword,
+            errors.error(stmt.keyword,
                     "Can't return a value from an initializer.");
         }
 
         if (stmt.value != null) {
             resolve(stmt.value);
+
+            if (stmt.value instanceof Expr.Call call) {
+                resolution.resolveTailCall(call);
+            }
         }
 
         return null;
     }
 
+    /**
+     * resolves a whole program (or a line of the REPL), the entry point for Lox.
+     */
+    public void resolveScript(List<Stmt> statements) {
+        final Map<Stmt, Resolver> declarations = resolveDeclarations(statements);
+
+        for (Stmt statement : statements) {
+            final Resolver declaration = declarations.get(statement);
+            if (declaration == null) {
+                resolve(statement);
+                continue;
+            }
+
+            declaration.errors.drainTo(errors);
+            resolution.addAll(declaration.resolution);
+            frame.size = Math.max(frame.size, declaration.frame.size);
+        }
+
+        interpreter.resolveScript(new FrameLayout(frame.size, false, new boolean[0], new int[0]));
+    }
+
+    /**
+     * functions and classes declared at the top level can only see globals and each other's names, so each of them
+     * resolves the same on its own, with a Resolver that starts out empty, as it does in line.
+     * the only thing they have in common with the rest of the script is `super`, a slot of the script's frame, and
+     * that's always the first free one, 0, at the top level. resolveScript takes their results in order.
+     */
+    private Map<Stmt, Resolver> resolveDeclarations(List<Stmt> statements) {
+        final Map<Stmt, Resolver> declarations = new IdentityHashMap<>();
+        if (Runtime.getRuntime().availableProcessors() == 1) return declarations;
+
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+                declarations.put(statement, new Resolver(null, new Resolution(), ErrorSink.buffered()));
+            }
+        }
+
+        if (declarations.size() < PARALLEL_DECLARATIONS) return Map.of();
+
+        declarations.entrySet().parallelStream().forEach(entry -> entry.getValue().resolve(entry.getKey()));
+        return declarations;
+    }
+
+    /**
+     * resolves the body of a function once its DeferredBody has been parsed, as the method of a class without a
+     * superclass or a function declared at the top level. the function's layout joins the interpreter's tables.
+     */
+    static void resolveDeferred(Interpreter interpreter, Stmt.Function function, boolean isMethod, ErrorSink errors) {
+        final Resolver resolver = new Resolver(interpreter, interpreter.resolution, errors);
+
+        if (!isMethod) {
+            resolver.resolveFunction(function, FunctionType.FUNCTION);
+            return;
+        }
+
+        resolver.currentClass = ClassType.CLASS;
+        resolver.resolveFunction(function,
+                function.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD);
+    }
+
     public Void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -249,54 +446,201 @@ import java.util.Stack;public class Resolver implements  Expr.Visitor<Void>, Stm
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        if (depth == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        scopeStarts[depth++] = declared.size();
     }
 
+    /**
+     * once a scope is done every use of its locals is known, so the interpreter learns whether they need a cell.
+     * their slots are free for whatever comes next, closures hold on to cells, never to slots.
+     */
     private void endScope() {
-        scopes.pop();
+        final int start = scopeStarts[--depth];
+
+        int first = frame.next;
+        for (int i = declared.size() - 1; i >= start; i--) {
+            final Local local = declared.remove(i);
+            if (local.shadowed == null) {
+                visible.remove(local.name);
+            } else {
+                visible.put(local.name, local.shadowed);
+            }
+
+            if (local.declaration != null) {
+                resolution.resolveSlot(local.declaration, local.slot, local.captured);
+            }
+
+            if (local.frame == frame) first = Math.min(first, local.slot);
+        }
+
+        frame.next = first;
     }
 
     private void declare(Token name) {
-        if (scopes.isEmpty()) { return; }
+        if (depth == 0) { return; }
 
-        final Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+        final Local existing = visible.get(name.lexeme);
+        if (existing != null && existing.depth == depth) {
+            errors.error(name,
                     "Already a variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        push(name.lexeme, name);
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) { return; }
-        scopes.peek().put(name.lexeme, true);
+        if (depth == 0) { return; }
+        visible.get(name.lexeme).defined = true;
+    }
+
+    /**
+     * declares and defines a local the user didn't write, `this` or `super`.
+     */
+    private Local declareHidden(String name, Token declaration) {
+        final Local local = push(name, declaration);
+        local.defined = true;
+        return local;
+    }
+
+    /**
+     * puts a new local in the innermost scope, in front of any other local of the same name.
+     */
+    private Local push(String name, Token declaration) {
+        final Local local = new Local(name, depth, frame, frame.allocate(), declaration);
+        local.shadowed = visible.put(name, local);
+        declared.add(local);
+        return local;
     }
 
     private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+        final Integer location = locate(name.lexeme, expr instanceof Expr.Assign);
+        if (location != null) {
+            resolution.resolve(expr, location);
         }
     }
 
+    /**
+     * where the innermost variable called name lives as seen from the current function: its slot when it's one of our
+     * own locals, -1 - index when it's the upvalue at index. null means it's a global.
+     */
+    private Integer locate(String name, boolean write) {
+        final Local local = visible.get(name);
+        if (local == null) return null;
+
+        if (write) {
+            local.writes++;
+        } else {
+            local.reads++;
+        }
+
+        if (local.frame == frame) return local.slot;
+        return -1 - capture(frame, local);
+    }
+
+    /**
+     * makes local an upvalue of the function whose frame this is, and of every function between the two.
+     */
+    private int capture(Frame function, Local local) {
+        final Integer existing = function.upvalueIndexes.get(local);
+        if (existing != null) return existing;
+
+        final int source;
+        if (local.frame == function.enclosing) {
+            local.captured = true;
+            source = local.slot;
+        } else {
+            source = -1 - capture(function.enclosing, local);
+        }
+
+        function.upvalues.add(source);
+        function.upvalueIndexes.put(local, function.upvalues.size() - 1);
+        return function.upvalues.size() - 1;
+    }
+
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        // resolved on its first call, with the rest of it.
+        if (function.deferred != null) return;
+
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        final Frame enclosingFrame = frame;
+        frame = new Frame(enclosingFrame);
 
         beginScope();
+
+        final List<Local> parameters = new ArrayList<>();
+        final boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        if (hasReceiver) {
+            parameters.add(declareHidden("this", null));
+        }
+
         for (Token param : function.parameters) {
             declare(param);
             define(param);
+            parameters.add(visible.get(param.lexeme));
         }
         resolve(function.body);
+
+        final boolean[] capturedParameters = new boolean[parameters.size()];
+        for (int i = 0; i < capturedParameters.length; i++) {
+            capturedParameters[i] = parameters.get(i).captured;
+        }
+
+        final int[] upvalues = new int[frame.upvalues.size()];
+        for (int i = 0; i < upvalues.length; i++) {
+            upvalues[i] = frame.upvalues.get(i);
+        }
+
         endScope();
+        resolution.resolveFunction(function,
+                new FrameLayout(frame.size, hasReceiver, capturedParameters, upvalues));
 
+        frame = enclosingFrame;
         currentFunction = enclosingFunction;
     }
 
+    private static class Local {
+        final String name;
+        final int depth;
+        final Frame frame;
+        final int slot;
+        final Token declaration;
+
+        /**
+         * the local of the same name this one hides while it's in scope
+         */
+        Local shadowed;
+        boolean defined = false;
+        boolean captured = false;
+        int reads = 0;
+        int writes = 0;
+
+        Local(String name, int depth, Frame frame, int slot, Token declaration) {
+            this.name = name;
+            this.depth = depth;
+            this.frame = frame;
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    private static class Frame {
+        final Frame enclosing;
+        final List<Integer> upvalues = new ArrayList<>();
+        final Map<Local, Integer> upvalueIndexes = new HashMap<>();
+        int next = 0;
+        int size = 0;
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        int allocate() {
+            size = Math.max(size, next + 1);
+            return next++;
+        }
+    }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -1,52 +1,159 @@
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.stream.IntStream;
 
 public class Scanner {
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+
+    /**
+     * made by scanTokens() for a whole source, given for a chunk and the repair scanner of scanInParallel()
+     */
+    private TokenBuffer tokens;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TokenType.AND);
-        keywords.put("class",  TokenType.CLASS);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("for",    TokenType.FOR);
-        keywords.put("fun",    TokenType.FUN);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("nil",    TokenType.NIL);
-        keywords.put("or",     TokenType.OR);
-        keywords.put("print",  TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super",  TokenType.SUPER);
-        keywords.put("this",   TokenType.THIS);
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("var",    TokenType.VAR);
-        keywords.put("while",  TokenType.WHILE);
-    }
-
-    Scanner(String source) {
+    /**
+     * the part of the source this scanner does, all of it unless it's one chunk of it.
+     */
+    private final int from;
+    private final int end;
+
+    /**
+     * a chunk is scanned before it's known whether it really starts outside of a string, so its errors are buffered
+     * until it is.
+     */
+    private final ErrorSink errors;
+
+    /**
+     * where the string that ran past the end of the chunk starts, and its line. -1 if there's none.
+     */
+    private int unterminated = -1;
+    private int unterminatedLine;
+
+    /**
+     * sources at least this long are split at newlines into chunks that are scanned in parallel.
+     */
+    static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    private static final int MIN_CHUNK_LENGTH = 256 * 1024;
+
+    /**
+     * every integer with this many digits is below 2^53, so it converts to a double exactly
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    Scanner(String source, ErrorSink errors) {
+        this(source, 0, source.length(), 1, null, errors);
+    }
+
+    private Scanner(String source, int from, int end, int line, TokenBuffer tokens, ErrorSink errors) {
         this.source = source;
+        this.from = from;
+        this.start = from;
+        this.current = from;
+        this.end = end;
+        this.line = line;
+        this.tokens = tokens;
+        this.errors = errors;
     }
 
-    List<Token> scanTokens() {
+    TokenBuffer scanTokens() {
+        if (source.length() >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1) {
+            return scanInParallel();
+        }
+
+        tokens = new TokenBuffer(source, source.length() / 4);
+        scan();
+        tokens.add(TokenType.EOF, current, 0, line);
+        return tokens;
+    }
+
+    private void scan() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
+    }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
+    /**
+     * every chunk starts right after a newline, and the only token that can span lines is a string, so a chunk that
+     * doesn't start inside a string scans the same on its own as it would in one go. that's assumed for all of them
+     * while they're scanned in parallel, then checked while stitching them together in order: when a chunk ends in
+     * the middle of a string, scanning carries on from the start of that string through the following chunks until
+     * it's at the start of one outside of a string again, and that chunk's own result is good from there on.
+     * lines are counted from 1 in every chunk and moved down by the newlines in front of it while stitching.
+     * the chunks are stitched together in the first one's buffer, grown once to fit all of them, and every other
+     * chunk's buffer is let go of as soon as it's been copied, so the tokens aren't all held twice.
+     */
+    private TokenBuffer scanInParallel() {
+        final int length = source.length();
+        final int chunkLength = Math.max(
+                MIN_CHUNK_LENGTH,
+                length / (Runtime.getRuntime().availableProcessors() * 4)
+        );
+
+        final List<Scanner> chunks = new ArrayList<>();
+        for (int from = 0; from < length; ) {
+            int to = from + chunkLength;
+            if (to >= length) {
+                to = length;
+            } else {
+                final int newline = source.indexOf('\n', to);
+                to = newline < 0 ? length : newline + 1;
+            }
+
+            chunks.add(new Scanner(source, from, to, 1, new TokenBuffer(source, (to - from) / 4), ErrorSink.buffered()));
+            from = to;
+        }
+
+        IntStream.range(0, chunks.size()).parallel().forEach(i -> chunks.get(i).scan());
+
+        // one more for EOF, more only when a string ran past the end of a chunk.
+        int total = 1;
+        for (Scanner chunk : chunks) {
+            total += chunk.tokens.size();
+        }
+
+        tokens = chunks.get(0).tokens;
+        tokens.ensureCapacity(total);
+
+        int next = 0;
+        int position = 0;
+        int line = 1;
+        while (position < length) {
+            // we are at the start of this chunk, outside of any string.
+            final Scanner chunk = chunks.get(next++);
+            if (chunk.tokens != tokens) tokens.append(chunk.tokens, line - 1);
+            chunk.tokens = null;
+            chunk.errors.drainTo(errors, line - 1);
+
+            if (chunk.unterminated < 0) {
+                position = chunk.end;
+                line += chunk.line - 1;
+                continue;
+            }
+
+            final Scanner repair = new Scanner(
+                    source, chunk.unterminated, length, chunk.unterminatedLine + line - 1, tokens, errors
+            );
+            while (!repair.isAtEnd()) {
+                while (next < chunks.size() && chunks.get(next).from < repair.current) next++;
+                if (next < chunks.size() && chunks.get(next).from == repair.current) break;
+
+                repair.start = repair.current;
+                repair.scanToken();
+            }
+
+            position = repair.current;
+            line = repair.line;
+        }
+
+        tokens.add(TokenType.EOF, length, 0, line);
         return tokens;
     }
 
+
     private void scanToken() {
         char c = next();
 
@@ -91,7 +198,7 @@ public class Scanner {
                     identifier();
                     break;
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    errors.error(line, "Unexpected character.");
                     break;
                 }
         }
@@ -109,10 +216,55 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) { next(); }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        addToken(keyword());
+    }
+
+    /**
+     * tells keywords from identifiers by looking at the characters in the source, a switch on the first one (and the
+     * second one where keywords share it) and a comparison of the rest, so no substring is needed.
+     */
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                        case 'u': return keyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", TokenType.IF);
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'p': return keyword(1, "rint", TokenType.PRINT);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+
+        return TokenType.IDENTIFIER;
+    }
+
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() &&
+                source.regionMatches(start + offset, rest, 0, rest.length())) {
+            return type;
+        }
+
+        return TokenType.IDENTIFIER;
     }
 
     private boolean match(char target) {
@@ -133,26 +285,33 @@ public class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        tokens.add(type, start, current - start, line);
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line, literal);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private void string() {
+        final int startLine = line;
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') { line++; }
             next();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            if (end < source.length()) {
+                // it goes on in the next chunk.
+                unterminated = start;
+                unterminatedLine = startLine;
+                return;
+            }
+
+            errors.error(line, "Unterminated string.");
             return;
         }
 
@@ -166,12 +325,22 @@ public class Scanner {
         return c >= '0' && c <= '9';
     }
 
+    /**
+     * integers are added up digit by digit while they're scanned, that's exact as long as they fit in 15 digits.
+     * longer ones and fractions go through Double.parseDouble.
+     */
     private void number() {
-        while (isDigit(peek())) next();
+        long value = source.charAt(start) - '0';
+        while (isDigit(peek())) {
+            value = value * 10 + (next() - '0');
+        }
 
         if (peek() == '.' && isDigit(peekNext())) {
             next();
             while (isDigit(peek())) next();
+        } else if (current - start <= MAX_EXACT_DIGITS) {
+            addToken(TokenType.NUMBER, (double)value);
+            return;
         }
 
         addToken(
@@ -181,7 +350,7 @@ public class Scanner {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
 }
\ No newline at end of file
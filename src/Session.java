@@ -0,0 +1,57 @@
+import java.io.PrintStream;
+
+/**
+ * one run of Lox: a script, or a whole REPL session, with where its output goes and whether it has failed.
+ * nothing about a run is static, so the daemon can have as many going at once as it has workers.
+ * errors reach it through errors, the ErrorSink that reports straight to it.
+ */
+public class Session {
+    final PrintBuffer out;
+    final PrintStream err;
+    final ErrorSink errors = ErrorSink.reportingTo(this);
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Session(PrintBuffer out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    public void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    public void runtimeError(RuntimeError error) {
+        // everything printed before the error should show up before it.
+        out.flush();
+        err.println(error.getMessage() +
+            "\n[line " + error.token.line + "]");
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        // errors in a deferred body come up while the script runs, after whatever it printed.
+        out.flush();
+        err.println(
+            "[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    /**
+     * the status the process should exit with: 65 after a syntax or resolution error, 70 after a runtime error.
+     */
+    public int status() {
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+}
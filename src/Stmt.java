@@ -11,6 +11,7 @@ abstract class Stmt {
     R visitBlockStmt(Block stmt);
     R visitIfStmt(If stmt);
     R visitWhileStmt(While stmt);
+    R visitForStmt(For stmt);
     R visitReturnStmt(Return stmt);
   }
   static class Print extends Stmt {
@@ -68,10 +69,9 @@ abstract class Stmt {
     final List<Stmt.Function> methods;
   }
   static class Function extends Stmt {
-    Function(Token name, List<Token> parameters, List<Stmt> body) {
+    Function(Token name, List<Token> parameters) {
       this.name = name;
       this.parameters = parameters;
-      this.body = body;
     }
 
     @Override
@@ -81,7 +81,9 @@ abstract class Stmt {
 
     final Token name;
     final List<Token> parameters;
-    final List<Stmt> body;
+    List<Stmt> body;
+    DeferredBody deferred;
+    FrameLayout layout;
   }
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
@@ -112,7 +114,8 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -122,8 +125,33 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
+    final Expr condition;
+    final Stmt body;
+    int backEdges;
+    Compiler.CompiledStmt compiled;
+  }
+  static class For extends Stmt {
+    For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.keyword = keyword;
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Token keyword;
+    final Stmt initializer;
     final Expr condition;
+    final Expr increment;
     final Stmt body;
+    int backEdges;
+    Compiler.CompiledStmt compiled;
   }
   static class Return extends Stmt {
     Return(Token keyword, Expr value) {
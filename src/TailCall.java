@@ -0,0 +1,14 @@
+/**
+ * thrown instead of a Return by `return f(x);` when f is a Lox function. the function being returned from catches
+ * it and runs f in its own frame, so a chain of tail calls needs constant Java stack.
+ */
+public class TailCall extends Return {
+    final LoxFunction function;
+    final Object[] arguments;
+
+    TailCall(LoxFunction function, Object[] arguments) {
+        super(null);
+        this.function = function;
+        this.arguments = arguments;
+    }
+}
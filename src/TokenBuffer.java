@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * what the Scanner produces: the tokens of a source as parallel arrays of their type, where they start in the source,
+ * how long they are and their line, rather than as a list of Token objects.
+ * the literal values of number and string tokens are kept on the side, in the order of the tokens they belong to.
+ * the Parser reads through it by index and only asks for a Token object where the AST holds on to one.
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int MIN_CAPACITY = 16;
+
+    private final String source;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+
+    private int[] literalTokens = new int[MIN_CAPACITY];
+    private Object[] literals = new Object[MIN_CAPACITY];
+    private int literalCount = 0;
+
+    /**
+     * a good guess for capacity is about one token per 4 characters of source.
+     */
+    TokenBuffer(String source, int capacity) {
+        this.source = source;
+
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(TokenType type, int start, int length, int line) {
+        if (size == types.length) grow(size + 1);
+
+        types[size] = (byte)type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    public void add(TokenType type, int start, int length, int line, Object literal) {
+        if (literalCount == literals.length) {
+            literalTokens = Arrays.copyOf(literalTokens, literalCount * 2);
+            literals = Arrays.copyOf(literals, literalCount * 2);
+        }
+
+        literalTokens[literalCount] = size;
+        literals[literalCount] = literal;
+        literalCount++;
+
+        add(type, start, length, line);
+    }
+
+    /**
+     * adds all of the tokens of another buffer over the same source, with their lines moved down by lineOffset.
+     */
+    public void append(TokenBuffer other, int lineOffset) {
+        if (size + other.size > types.length) grow(size + other.size);
+
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        for (int i = 0; i < other.size; i++) {
+            lines[size + i] = other.lines[i] + lineOffset;
+        }
+
+        if (literalCount + other.literalCount > literals.length) {
+            final int capacity = Math.max(literalCount * 2, literalCount + other.literalCount);
+            literalTokens = Arrays.copyOf(literalTokens, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+        }
+
+        System.arraycopy(other.literals, 0, literals, literalCount, other.literalCount);
+        for (int i = 0; i < other.literalCount; i++) {
+            literalTokens[literalCount + i] = other.literalTokens[i] + size;
+        }
+
+        literalCount += other.literalCount;
+        size += other.size;
+    }
+
+    /**
+     * makes room for capacity tokens in all, exactly, when there isn't already.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > types.length) resize(capacity);
+    }
+
+    private void grow(int minCapacity) {
+        resize(Math.max(types.length * 2, minCapacity));
+    }
+
+    private void resize(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    public Object literal(int index) {
+        final int entry = Arrays.binarySearch(literalTokens, 0, literalCount, index);
+        return entry >= 0 ? literals[entry] : null;
+    }
+
+    public String lexeme(int index) {
+        return source.substring(starts[index], starts[index] + lengths[index]);
+    }
+
+    /**
+     * a new Token for the token at index, every call makes a new one.
+     */
+    public Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), lines[index]);
+    }
+}
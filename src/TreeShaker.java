@@ -0,0 +1,312 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * drops the functions and classes declared at the top level of a script that nothing in it can reach, once the
+ * Resolver is done with the whole script, so they're neither defined nor kept around while it runs.
+ * .....................................................................................................................
+ * every other top-level statement runs, what it mentions by name is reachable, and so is everything the functions
+ * and classes of those names mention, and so on. names are all a global can be reached by: properties and methods
+ * are looked up dynamically, but only on instances and classes that were reached by name first, so a class is kept
+ * or dropped with all of its methods. locals of the same name as a global count as a use of it too, that only ever
+ * keeps more than needed. a body the Parser deferred counts as using every identifier in it.
+ * .....................................................................................................................
+ * declaring a function can't fail, declaring a class can when its superclass isn't one. a class with a superclass is
+ * only dropped when the superclass is sure to be a class by then: it's declared before by class declarations only,
+ * and nothing that runs assigns to it.
+ */
+public class TreeShaker implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final List<Stmt> statements;
+
+    /**
+     * where the top-level functions and classes of each name are among the statements
+     */
+    private final Map<String, List<Integer>> declarations = new HashMap<>();
+
+    private final Set<String> reachable = new HashSet<>();
+    private final Deque<String> pending = new ArrayDeque<>();
+
+    /**
+     * globals that may be given another value than their declaration: assigned to, or declared by a top-level var
+     */
+    private final Set<String> assigned = new HashSet<>();
+
+    /**
+     * classes kept though nothing reaches them, because their superclass might not be a class
+     */
+    private final Set<Stmt.Class> unsafe = new HashSet<>();
+
+    private final List<Stmt> removed = new ArrayList<>();
+
+    TreeShaker(List<Stmt> statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * the statements of the script without its unreachable declarations, which removed() has afterwards.
+     */
+    public List<Stmt> shake() {
+        for (int i = 0; i < statements.size(); i++) {
+            final Stmt statement = statements.get(i);
+            if (statement instanceof Stmt.Function function) {
+                declarations.computeIfAbsent(function.name.lexeme, name -> new ArrayList<>()).add(i);
+            } else if (statement instanceof Stmt.Class klass) {
+                declarations.computeIfAbsent(klass.name.lexeme, name -> new ArrayList<>()).add(i);
+            } else {
+                if (statement instanceof Stmt.Var var) assigned.add(var.name.lexeme);
+                statement.accept(this);
+            }
+        }
+
+        // a class found unsafe reaches more code, which can assign to the superclass of another one.
+        do {
+            reachPending();
+        } while (findUnsafeClasses());
+
+        final List<Stmt> kept = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (isRemovable(statement)) {
+                removed.add(statement);
+            } else {
+                kept.add(statement);
+            }
+        }
+
+        return kept;
+    }
+
+    public List<Stmt> removed() {
+        return removed;
+    }
+
+    private boolean isRemovable(Stmt statement) {
+        if (statement instanceof Stmt.Function function) {
+            return !reachable.contains(function.name.lexeme);
+        }
+
+        if (statement instanceof Stmt.Class klass) {
+            return !reachable.contains(klass.name.lexeme) && !unsafe.contains(klass);
+        }
+
+        return false;
+    }
+
+    private void reachPending() {
+        while (!pending.isEmpty()) {
+            final List<Integer> declared = declarations.get(pending.pop());
+            if (declared == null) continue;
+
+            for (int index : declared) {
+                statements.get(index).accept(this);
+            }
+        }
+    }
+
+    private boolean findUnsafeClasses() {
+        boolean found = false;
+
+        for (int i = 0; i < statements.size(); i++) {
+            if (!(statements.get(i) instanceof Stmt.Class klass) || klass.superClass == null) continue;
+            if (reachable.contains(klass.name.lexeme) || unsafe.contains(klass)) continue;
+
+            if (!isClassBefore(klass.superClass.name.lexeme, i)) {
+                unsafe.add(klass);
+                klass.accept(this);
+                found = true;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * whether the global called name holds a class by the time the statement at index runs.
+     */
+    private boolean isClassBefore(String name, int index) {
+        if (assigned.contains(name)) return false;
+
+        final List<Integer> declared = declarations.get(name);
+        if (declared == null) return false;
+
+        for (int other : declared) {
+            if (!(statements.get(other) instanceof Stmt.Class)) return false;
+        }
+
+        return declared.get(0) < index;
+    }
+
+    private void reach(String name) {
+        if (reachable.add(name)) pending.push(name);
+    }
+
+    private void visit(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        reach(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        reach(expr.name.lexeme);
+        assigned.add(expr.name.lexeme);
+        expr.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        expr.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        expr.callee.accept(this);
+        for (Expr argument : expr.arguments) {
+            argument.accept(this);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superClass != null) stmt.superClass.accept(this);
+
+        for (Stmt.Function method : stmt.methods) {
+            method.accept(this);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.deferred == null) {
+            visit(stmt.body);
+            return null;
+        }
+
+        // whatever the body does with these names, it's done at most to them.
+        for (String name : stmt.deferred.identifiers()) {
+            reach(name);
+            assigned.add(name);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        visit(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        if (stmt.condition != null) stmt.condition.accept(this);
+        if (stmt.increment != null) stmt.increment.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) stmt.value.accept(this);
+        return null;
+    }
+}
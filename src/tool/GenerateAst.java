@@ -20,8 +20,8 @@ public class GenerateAst {
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name",
-                "Assign   : Token name, Expr value",
+                "Variable : Token name | GlobalCell global",
+                "Assign   : Token name, Expr value | GlobalCell global",
                 "Get      : Expr object, Token name",
                 "Set      : Expr object, Token name, Expr value",
                 "Call     : Expr callee, Token paren, List<Expr> arguments",
@@ -34,10 +34,11 @@ public class GenerateAst {
                 "Expression : Expr expression",
                 "Var        : Token name, Expr initializer",
                 "Class      : Token name, Expr.Variable superClass, List<Stmt.Function> methods",
-                "Function   : Token name, List<Token> parameters, List<Stmt> body",
+                "Function   : Token name, List<Token> parameters | List<Stmt> body, DeferredBody deferred, FrameLayout layout",
                 "Block      : List<Stmt> statements",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-                "While      : Expr condition, Stmt body",
+                "While      : Token keyword, Expr condition, Stmt body | int backEdges, Compiler.CompiledStmt compiled",
+                "For        : Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body | int backEdges, Compiler.CompiledStmt compiled",
                 "Return     : Token keyword, Expr value"
                 ));
     }
@@ -73,6 +74,13 @@ public class GenerateAst {
     private static void defineType(
             PrintWriter writer, String baseName,
             String className, String fieldList) {
+        // Fields after a '|' aren't set by the constructor, the interpreter fills them in as it runs.
+        String cacheList = null;
+        if (fieldList.contains("|")) {
+            cacheList = fieldList.split("\\|")[1].trim();
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -102,6 +110,12 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (cacheList != null) {
+            for (String field : cacheList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 
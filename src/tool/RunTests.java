@@ -0,0 +1,316 @@
+package tool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * runs every .lox script under the test directory with the compiled interpreter and checks what it does against the
+ * comments in the script, the way the book's test suite writes them:
+ *   // expect: text                    a line the script prints
+ *   // expect runtime error: message   the runtime error it stops with, on the line of the comment
+ *   // Error at 'x': message           a syntax or resolution error on the line of the comment
+ *   // [line 12] Error at end: message the same on another line
+ *   // options: --lazy                 command line options to run the script with
+ * the exit status has to be the one these add up to: 65 after a syntax error, even when a runtime error follows it,
+ * 70 after a runtime error, 0 otherwise.
+ * .....................................................................................................................
+ * sources big enough for the Scanner to split into chunks are too big to keep around, those are generated instead:
+ * strings and comments placed so that chunk boundaries fall inside them, run once on a single processor, where
+ * everything is scanned in one go, and once on eight, and checked against what the generator expects of them.
+ * .....................................................................................................................
+ * javac -d out src/*.java && javac -d tools src/tool/RunTests.java && java -cp tools tool.RunTests out test
+ */
+public class RunTests {
+    private static final Pattern EXPECTED_OUTPUT = Pattern.compile("// expect: ?(.*)");
+    private static final Pattern EXPECTED_RUNTIME_ERROR = Pattern.compile("// expect runtime error: (.+)");
+    private static final Pattern EXPECTED_ERROR = Pattern.compile("// (Error.*)");
+    private static final Pattern EXPECTED_ERROR_AT = Pattern.compile("// \\[line (\\d+)\\] (Error.*)");
+    private static final Pattern OPTIONS = Pattern.compile("// options: (.+)");
+
+    /**
+     * comfortably over the length the Scanner starts scanning in parallel at, 1 MiB
+     */
+    private static final int CHUNKED_LENGTH = 3 * 1024 * 1024 / 2;
+
+    private static String classes;
+    private static int passed = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: run_tests <interpreter classes> <test directory>");
+            System.exit(64);
+        }
+        classes = args[0];
+
+        final List<Path> scripts;
+        try (Stream<Path> paths = Files.walk(Paths.get(args[1]))) {
+            scripts = paths.filter(path -> path.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+
+        for (Path script : scripts) {
+            runScript(script);
+        }
+
+        runChunked("strings across chunks", stringsAcrossChunks());
+        runChunked("string longer than a chunk", longString());
+        runChunked("errors in every chunk", errorsInEveryChunk());
+
+        System.out.println(passed + " passed, " + failed + " failed.");
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void runScript(Path script) throws IOException, InterruptedException {
+        final List<String> lines = Files.readAllLines(script, StandardCharsets.UTF_8);
+        final List<String> options = new ArrayList<>();
+        final List<String> output = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        int status = 0;
+
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            final int number = i + 1;
+            Matcher match;
+
+            if ((match = OPTIONS.matcher(line)).find()) {
+                options.addAll(Arrays.asList(match.group(1).split(" ")));
+            } else if ((match = EXPECTED_OUTPUT.matcher(line)).find()) {
+                output.add(match.group(1));
+            } else if ((match = EXPECTED_RUNTIME_ERROR.matcher(line)).find()) {
+                errors.add(match.group(1));
+                errors.add("[line " + number + "]");
+                if (status == 0) status = 70;
+            } else if ((match = EXPECTED_ERROR_AT.matcher(line)).find()) {
+                errors.add("[line " + match.group(1) + "] " + match.group(2));
+                status = 65;
+            } else if ((match = EXPECTED_ERROR.matcher(line)).find()) {
+                errors.add("[line " + number + "] " + match.group(1));
+                status = 65;
+            }
+        }
+
+        options.add(script.toString());
+        final Result actual = run(List.of(), options);
+
+        // all the Scanner's errors come before the Parser's, so only which errors there are is checked, not their order.
+        Collections.sort(actual.errors);
+        Collections.sort(errors);
+        check(script.toString(), actual, new Result(output, errors, status));
+    }
+
+    private static void runChunked(String name, Generated generated) throws IOException, InterruptedException {
+        final Path script = Files.createTempFile("lox", ".lox");
+        try {
+            Files.writeString(script, generated.source, StandardCharsets.UTF_8);
+            for (int processors : new int[] { 1, 8 }) {
+                final Result actual = run(List.of("-XX:ActiveProcessorCount=" + processors), List.of(script.toString()));
+                check(name + " on " + processors + " processors", actual, generated.expected);
+            }
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    /**
+     * multi-line strings, one after the other, whose lines look like code and comments. a chunk that starts inside
+     * one of them and is scanned as code sees a comment swallow the closing quote, and a quote in a real comment as
+     * the start of a string, so it's off by one string from there on until it's stitched back.
+     */
+    private static Generated stringsAcrossChunks() {
+        final Generated generated = new Generated();
+        generated.line("var count = 0;");
+        generated.line("var last = \"\";");
+
+        int units = 0;
+        while (generated.source.length() < CHUNKED_LENGTH) {
+            generated.line("last = \"unit " + units);
+            generated.line("print not code;");
+            generated.line("} var x = " + units + "; {");
+            generated.line("end " + units + " // still in the string\";");
+            generated.line("// a comment with a \" in it");
+            generated.line("count = count + 1;");
+            units++;
+        }
+
+        final int last = units - 1;
+        generated.line("print count;");
+        generated.line("print last;");
+        generated.line("print count + nil;");
+
+        generated.output(String.valueOf(units));
+        generated.output("unit " + last);
+        generated.output("print not code;");
+        generated.output("} var x = " + last + "; {");
+        generated.output("end " + last + " // still in the string");
+        generated.runtimeError("Operands must be two numbers or two strings.");
+        return generated;
+    }
+
+    /**
+     * a single string that spans several chunks, every one of which starts inside it.
+     */
+    private static Generated longString() {
+        final Generated generated = new Generated();
+        generated.line("var long = \"start");
+
+        int lines = 0;
+        while (generated.source.length() < CHUNKED_LENGTH) {
+            generated.line("} { var " + lines + " // not a comment, not code either");
+            lines++;
+        }
+
+        generated.line("end\";");
+        generated.line("print \"after \" + \"" + lines + " lines\";");
+        generated.line("print long + 1;");
+
+        generated.output("after " + lines + " lines");
+        generated.runtimeError("Operands must be two numbers or two strings.");
+        return generated;
+    }
+
+    /**
+     * unexpected characters spread over every chunk, some of them inside strings where they aren't errors, and a
+     * string left open at the end. the errors have to come out in the order and on the lines they do in one go.
+     */
+    private static Generated errorsInEveryChunk() {
+        final Generated generated = new Generated();
+
+        while (generated.source.length() < CHUNKED_LENGTH) {
+            generated.line("var text = \"@ is fine");
+            generated.line("in a string @\";");
+            generated.line("@");
+            generated.compileError("Error: Unexpected character.");
+            for (int i = 0; i < 100; i++) {
+                generated.line("text = text + \"" + i + "\"; // a comment with an @ in it");
+            }
+        }
+
+        generated.line("print \"closed\"; \"never closed");
+        generated.line("@ still in the string");
+        generated.compileError("Error: Unterminated string.");
+        return generated;
+    }
+
+    /**
+     * runs Lox with the given JVM and interpreter options.
+     */
+    static Result run(List<String> jvmOptions, List<String> options) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classes);
+        command.add("Lox");
+        command.addAll(options);
+
+        final Path out = Files.createTempFile("lox", ".out");
+        final Path err = Files.createTempFile("lox", ".err");
+        try {
+            final Process process = new ProcessBuilder(command)
+                    .redirectOutput(out.toFile())
+                    .redirectError(err.toFile())
+                    .start();
+            final int status = process.waitFor();
+
+            return new Result(
+                    Files.readAllLines(out, StandardCharsets.UTF_8),
+                    Files.readAllLines(err, StandardCharsets.UTF_8),
+                    status
+            );
+        } finally {
+            Files.delete(out);
+            Files.delete(err);
+        }
+    }
+
+    static void check(String name, Result actual, Result expected) {
+        final List<String> failures = new ArrayList<>();
+        compare("output", actual.output, expected.output, failures);
+        compare("error output", actual.errors, expected.errors, failures);
+        if (actual.status != expected.status) {
+            failures.add("exit status " + actual.status + ", expected " + expected.status);
+        }
+
+        if (failures.isEmpty()) {
+            passed++;
+            return;
+        }
+
+        failed++;
+        System.out.println("FAIL " + name);
+        for (String failure : failures) {
+            System.out.println("     " + failure);
+        }
+    }
+
+    private static void compare(String what, List<String> actual, List<String> expected, List<String> failures) {
+        for (int i = 0; i < Math.max(actual.size(), expected.size()); i++) {
+            final String got = i < actual.size() ? actual.get(i) : null;
+            final String want = i < expected.size() ? expected.get(i) : null;
+            if (got == null || !got.equals(want)) {
+                failures.add(what + " line " + (i + 1) + ": got " + quote(got) + ", expected " + quote(want));
+                return;
+            }
+        }
+    }
+
+    private static String quote(String line) {
+        return line == null ? "nothing" : "'" + line + "'";
+    }
+
+    /**
+     * a script written a line at a time, along with what it's expected to do.
+     */
+    private static class Generated {
+        final StringBuilder source = new StringBuilder();
+        final Result expected = new Result(new ArrayList<>(), new ArrayList<>(), 0);
+        private int lines = 0;
+
+        void line(String line) {
+            source.append(line).append('\n');
+            lines++;
+        }
+
+        void output(String line) {
+            expected.output.add(line);
+        }
+
+        /**
+         * an error on the line last written, or at the end for an unterminated string.
+         */
+        void compileError(String message) {
+            final int line = message.endsWith("Unterminated string.") ? lines + 1 : lines;
+            expected.errors.add("[line " + line + "] " + message);
+            expected.status = 65;
+        }
+
+        void runtimeError(String message) {
+            expected.errors.add(message);
+            expected.errors.add("[line " + lines + "]");
+            expected.status = 70;
+        }
+    }
+
+    static class Result {
+        final List<String> output;
+        final List<String> errors;
+        int status;
+
+        Result(List<String> output, List<String> errors, int status) {
+            this.output = output;
+            this.errors = errors;
+            this.status = status;
+        }
+    }
+}